@@ -0,0 +1,199 @@
+package xposed.audiorouter;
+
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
+import android.os.Handler;
+import android.os.Looper;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import xposed.audiorouter.rules.RoutingTable;
+import xposed.audiorouter.rules.Rule;
+import xposed.audiorouter.rules.RuleFile;
+import xposed.audiorouter.rules.RuleLookup;
+
+/**
+ * Dry run of a rule list against every installed package. The rules are published to a scratch
+ * rule file exactly as {@link RuleStore} publishes them, and each package is resolved the way its
+ * hooked process would resolve itself, by uid and then by name, so the preview can't disagree
+ * with the hooks. Packages are evaluated in chunks on a small pool, and each chunk's results are
+ * delivered on the main thread as soon as it is done.
+ */
+public class CoveragePreview {
+
+    private static final String TAG = CoveragePreview.class.getSimpleName();
+    private static final String FILE_PREFIX = "preview";
+    private static final int CHUNK_SIZE = 32;
+    private static final int MAX_THREADS = 4;
+
+    public interface Listener {
+        /**
+         * @param results   the rerouted packages of the chunk just evaluated
+         * @param evaluated packages evaluated so far
+         * @param total     packages to evaluate
+         */
+        void onResults(List<Result> results, int evaluated, int total);
+
+        void onFinished(int total, long elapsedMillis);
+    }
+
+    public static final class Result {
+
+        public final String packageName;
+        public final CharSequence label;
+        /** The stream everything without a more specific rule goes to, or -1. */
+        public final int stream;
+        /** Whether some kinds of sound go elsewhere than {@link #stream}. */
+        public final boolean byUsage;
+        public final boolean conditional;
+        public final String entries;
+
+        Result(String packageName, CharSequence label, RoutingTable table, List<String> entries) {
+            this.packageName = packageName;
+            this.label = label;
+            this.stream = table.getDefaultStream();
+            this.byUsage = !table.isUniform();
+            this.conditional = null != table.getCondition();
+            this.entries = TextUtils.join(", ", entries);
+        }
+    }
+
+    private final Context context;
+    private final List<Rule> rules;
+    private final Listener listener;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final ExecutorService pool = Executors.newFixedThreadPool(
+            Math.max(1, Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors())));
+    private volatile boolean cancelled;
+    // A file of its own per run, so no other run rewrites it under the mapping
+    private volatile File file;
+
+    /**
+     * @param rules copies the caller won't touch while the preview runs
+     */
+    public CoveragePreview(Context context, List<Rule> rules, Listener listener) {
+        this.context = context.getApplicationContext();
+        this.rules = rules;
+        this.listener = listener;
+    }
+
+    public void start() {
+        final long start = System.nanoTime();
+        pool.execute(new Runnable() {
+            @Override
+            public void run() {
+                PackageManager packageManager = context.getPackageManager();
+                List<ApplicationInfo> applications = packageManager.getInstalledApplications(0);
+                RuleLookup lookup;
+                try {
+                    file = File.createTempFile(FILE_PREFIX, null, context.getCacheDir());
+                    RuleFile.write(file, rules, RuleStore.resolveUids(rules, applications));
+                    lookup = RuleFile.open(file);
+                } catch (IOException e) {
+                    Log.e(TAG, "start: Error writing preview rule file, " + e.getMessage());
+                    postFinished(0, start);
+                    return;
+                }
+                int total = applications.size();
+                if (total == 0) {
+                    postFinished(0, start);
+                    return;
+                }
+                AtomicInteger evaluated = new AtomicInteger();
+                for (int from = 0; from < total; from += CHUNK_SIZE) {
+                    if (cancelled)
+                        break;
+                    List<ApplicationInfo> chunk = applications.subList(from, Math.min(total, from + CHUNK_SIZE));
+                    try {
+                        pool.execute(new Chunk(chunk, lookup, evaluated, total, start));
+                    } catch (RejectedExecutionException e) {
+                        // Cancelled meanwhile
+                        break;
+                    }
+                }
+                if (cancelled)
+                    deleteFile();
+            }
+        });
+    }
+
+    public void cancel() {
+        cancelled = true;
+        pool.shutdownNow();
+        deleteFile();
+    }
+
+    private void deleteFile() {
+        // The mapping stays valid after the file is unlinked
+        File current = file;
+        if (null != current)
+            current.delete();
+    }
+
+    private void postFinished(final int total, final long start) {
+        deleteFile();
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!cancelled)
+                    listener.onFinished(total, (System.nanoTime() - start) / 1000000);
+            }
+        });
+        pool.shutdown();
+    }
+
+    private final class Chunk implements Runnable {
+
+        private final List<ApplicationInfo> applications;
+        private final RuleLookup lookup;
+        private final AtomicInteger evaluated;
+        private final int total;
+        private final long start;
+
+        Chunk(List<ApplicationInfo> applications, RuleLookup lookup, AtomicInteger evaluated, int total, long start) {
+            this.applications = applications;
+            this.lookup = lookup;
+            this.evaluated = evaluated;
+            this.total = total;
+            this.start = start;
+        }
+
+        @Override
+        public void run() {
+            PackageManager packageManager = context.getPackageManager();
+            final List<Result> results = new ArrayList<>();
+            for (ApplicationInfo info : applications) {
+                if (cancelled)
+                    return;
+                // As Xposed.getTable: by uid, then by name
+                RoutingTable table = lookup.getTableForUid(info.uid);
+                if (null == table)
+                    table = lookup.getTableForPackage(info.packageName);
+                if (null == table || !table.routesAnything())
+                    continue;
+                results.add(new Result(info.packageName, info.loadLabel(packageManager), table,
+                        HookRegistry.getRoutedEntries(table)));
+            }
+            final int done = evaluated.addAndGet(applications.size());
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (!cancelled)
+                        listener.onResults(results, done, total);
+                }
+            });
+            if (done == total)
+                postFinished(total, start);
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package xposed.audiorouter;
+
+import android.annotation.TargetApi;
+import android.bluetooth.BluetoothA2dp;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.media.AudioDeviceCallback;
+import android.media.AudioDeviceInfo;
+import android.media.AudioManager;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.Calendar;
+
+import xposed.audiorouter.rules.RuleCondition;
+
+/**
+ * The device state rule conditions test, kept in one volatile int by listeners in the hooked
+ * process, so a hook checks a condition with a single read and two masks instead of asking
+ * {@link AudioManager} or the clock. Only the states some condition depends on are tracked.
+ * <p>
+ * The low byte holds the {@link RuleCondition} {@code STATE_*} bits, the next one which of them
+ * are tracked already. Conditions on a state nobody tracks yet don't hold, so rules with them
+ * stay inactive until the process has a Context to listen with.
+ */
+final class DeviceState {
+
+    private static final int TRACKED_SHIFT = 8;
+
+    private static volatile int mState;
+    // Only touched on the main thread
+    private static Context mContext;
+    private static int mTracked;
+    private static int mWanted;
+    private static int mWindowStart = -1;
+    private static int mWindowEnd = -1;
+
+    private DeviceState() {
+    }
+
+    /**
+     * @return the mask of bits that must be set in {@link #get()} for {@code condition} to hold
+     */
+    static int requiredMask(RuleCondition condition) {
+        return condition.getRequired() | (condition.getDependencies() << TRACKED_SHIFT);
+    }
+
+    static int get() {
+        return mState;
+    }
+
+    static void install(Context context) {
+        mContext = context.getApplicationContext();
+        startTracking();
+    }
+
+    /**
+     * Starts tracking whatever {@code condition} depends on. Safe to call from any thread.
+     */
+    static void track(final RuleCondition condition) {
+        new Handler(Looper.getMainLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                mWanted |= condition.getDependencies();
+                if (condition.hasWindow()) {
+                    mWindowStart = condition.getWindowStart();
+                    mWindowEnd = condition.getWindowEnd();
+                    if (0 != (mTracked & RuleCondition.STATE_IN_WINDOW))
+                        updateWindow();
+                }
+                startTracking();
+            }
+        });
+    }
+
+    private static void startTracking() {
+        if (null == mContext)
+            return;
+        int start = mWanted & ~mTracked;
+        if (0 != (start & (RuleCondition.STATE_HEADSET | RuleCondition.STATE_BLUETOOTH)))
+            trackOutputs();
+        if (0 != (start & RuleCondition.STATE_IN_WINDOW))
+            trackWindow();
+    }
+
+    private static void trackOutputs() {
+        mTracked |= RuleCondition.STATE_HEADSET | RuleCondition.STATE_BLUETOOTH;
+        final AudioManager audioManager = (AudioManager) mContext.getSystemService(Context.AUDIO_SERVICE);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            // Needs no permission, unlike the Bluetooth broadcasts
+            registerDeviceCallback(audioManager);
+            return;
+        }
+        BroadcastReceiver receiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                if (AudioManager.ACTION_HEADSET_PLUG.equals(intent.getAction()))
+                    set(RuleCondition.STATE_HEADSET, intent.getIntExtra("state", 0) != 0);
+                set(RuleCondition.STATE_BLUETOOTH, audioManager.isBluetoothA2dpOn());
+            }
+        };
+        IntentFilter filter = new IntentFilter(AudioManager.ACTION_HEADSET_PLUG);
+        // Only delivered to apps holding the Bluetooth permission
+        filter.addAction(BluetoothA2dp.ACTION_CONNECTION_STATE_CHANGED);
+        Intent sticky = mContext.registerReceiver(receiver, filter);
+        set(RuleCondition.STATE_HEADSET, null != sticky && sticky.getIntExtra("state", 0) != 0);
+        set(RuleCondition.STATE_BLUETOOTH, audioManager.isBluetoothA2dpOn());
+    }
+
+    @TargetApi(Build.VERSION_CODES.M)
+    private static void registerDeviceCallback(final AudioManager audioManager) {
+        audioManager.registerAudioDeviceCallback(new AudioDeviceCallback() {
+            @Override
+            public void onAudioDevicesAdded(AudioDeviceInfo[] addedDevices) {
+                updateOutputs(audioManager);
+            }
+
+            @Override
+            public void onAudioDevicesRemoved(AudioDeviceInfo[] removedDevices) {
+                updateOutputs(audioManager);
+            }
+        }, new Handler(Looper.getMainLooper()));
+        updateOutputs(audioManager);
+    }
+
+    @TargetApi(Build.VERSION_CODES.M)
+    private static void updateOutputs(AudioManager audioManager) {
+        boolean headset = false;
+        boolean bluetooth = false;
+        for (AudioDeviceInfo device : audioManager.getDevices(AudioManager.GET_DEVICES_OUTPUTS)) {
+            switch (device.getType()) {
+                case AudioDeviceInfo.TYPE_WIRED_HEADSET:
+                case AudioDeviceInfo.TYPE_WIRED_HEADPHONES:
+                    headset = true;
+                    break;
+                case AudioDeviceInfo.TYPE_BLUETOOTH_A2DP:
+                case AudioDeviceInfo.TYPE_BLUETOOTH_SCO:
+                    bluetooth = true;
+                    break;
+            }
+        }
+        set(RuleCondition.STATE_HEADSET, headset);
+        set(RuleCondition.STATE_BLUETOOTH, bluetooth);
+    }
+
+    private static void trackWindow() {
+        mTracked |= RuleCondition.STATE_IN_WINDOW;
+        // Ticks only arrive while the device is awake, which is when apps start playing anyway
+        IntentFilter filter = new IntentFilter(Intent.ACTION_TIME_TICK);
+        filter.addAction(Intent.ACTION_TIME_CHANGED);
+        filter.addAction(Intent.ACTION_TIMEZONE_CHANGED);
+        filter.addAction(Intent.ACTION_SCREEN_ON);
+        mContext.registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                updateWindow();
+            }
+        }, filter);
+        updateWindow();
+    }
+
+    private static void updateWindow() {
+        Calendar now = Calendar.getInstance();
+        int minuteOfDay = now.get(Calendar.HOUR_OF_DAY) * 60 + now.get(Calendar.MINUTE);
+        RuleCondition window = new RuleCondition(0, 0, mWindowStart, mWindowEnd);
+        set(RuleCondition.STATE_IN_WINDOW, window.hasWindow() && window.isInWindow(minuteOfDay));
+    }
+
+    private static void set(int bit, boolean on) {
+        int state = (mState | (bit << TRACKED_SHIFT)) & ~bit;
+        mState = on ? state | bit : state;
+    }
+}
@@ -0,0 +1,140 @@
+package xposed.audiorouter;
+
+import android.app.Dialog;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Bundle;
+import android.support.annotation.NonNull;
+import android.support.v4.app.DialogFragment;
+import android.support.v7.app.AlertDialog;
+import android.view.View;
+import android.widget.TextView;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Asks every hooked process for its {@link HookStats} and shows them aggregated per hook.
+ */
+public class DiagnosticsDialog extends DialogFragment {
+
+    public static final String TAG = DiagnosticsDialog.class.getSimpleName();
+
+    private final Map<String, HookTotals> mTotals = new LinkedHashMap<>();
+    private final TreeMap<String, String> mPackages = new TreeMap<>();
+    private TextView mText;
+
+    private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (!SenderIdentity.isFrom(context, intent, intent.getStringExtra(HookStats.EXTRA_PACKAGE)))
+                return;
+            addStats(intent.getExtras());
+            updateText();
+        }
+    };
+
+    public static DiagnosticsDialog newInstance() {
+        return new DiagnosticsDialog();
+    }
+
+    @Override
+    public void onStart() {
+        super.onStart();
+        mTotals.clear();
+        mPackages.clear();
+        updateText();
+        getActivity().registerReceiver(mReceiver, new IntentFilter(ProcessReceiver.ACTION_STATS));
+        getActivity().sendBroadcast(new Intent(ProcessReceiver.ACTION_REQUEST_STATS));
+    }
+
+    @Override
+    public void onStop() {
+        super.onStop();
+        getActivity().unregisterReceiver(mReceiver);
+    }
+
+    @NonNull
+    @Override
+    public Dialog onCreateDialog(Bundle savedInstanceState) {
+        View view = View.inflate(getActivity(), R.layout.dialog_diagnostics, null);
+        mText = (TextView) view.findViewById(android.R.id.text1);
+
+        AlertDialog dialog = new AlertDialog.Builder(getActivity())
+                .setCancelable(true)
+                .setTitle(R.string.diagnostics)
+                .setView(view)
+                .create();
+        dialog.setCanceledOnTouchOutside(true);
+        return dialog;
+    }
+
+    private void addStats(Bundle stats) {
+        if (null == stats)
+            return;
+        String packageName = stats.getString(HookStats.EXTRA_PACKAGE);
+        String[] hooks = stats.getStringArray(HookStats.EXTRA_HOOKS);
+        long[] calls = stats.getLongArray(HookStats.EXTRA_CALLS);
+        long[] hits = stats.getLongArray(HookStats.EXTRA_HITS);
+        long[] misses = stats.getLongArray(HookStats.EXTRA_MISSES);
+        long[] histogram = stats.getLongArray(HookStats.EXTRA_HISTOGRAM);
+        if (null == hooks || null == calls || null == hits || null == misses || null == histogram)
+            return;
+        mPackages.put(packageName, formatStartup(stats.getLong(StartupStats.EXTRA_PROCESS_INIT_NANOS, -1),
+                stats.getInt(StartupStats.EXTRA_PROCESS_CLASSES, -1)));
+        for (int i = 0; i < hooks.length; i++) {
+            HookTotals totals = mTotals.get(hooks[i]);
+            if (null == totals)
+                mTotals.put(hooks[i], totals = new HookTotals());
+            totals.calls += calls[i];
+            totals.hits += hits[i];
+            totals.misses += misses[i];
+            for (int j = 0; j < HookStats.BUCKETS; j++)
+                totals.histogram[j] += histogram[i * HookStats.BUCKETS + j];
+        }
+    }
+
+    private void updateText() {
+        if (null == mText)
+            return;
+        StringBuilder sb = new StringBuilder();
+        sb.append("Reporting processes: ").append(mPackages.size()).append('\n');
+        for (Map.Entry<String, String> entry : mPackages.entrySet())
+            sb.append("  ").append(entry.getKey()).append(", init ").append(entry.getValue()).append('\n');
+        for (Map.Entry<String, HookTotals> entry : mTotals.entrySet()) {
+            HookTotals totals = entry.getValue();
+            sb.append('\n').append(entry.getKey()).append('\n')
+                    .append("  calls ").append(totals.calls)
+                    .append(", hits ").append(totals.hits)
+                    .append(", misses ").append(totals.misses).append('\n')
+                    .append("  p50 < ").append(formatNanos(HookStats.percentile(totals.histogram, 0, 50)))
+                    .append(", p99 < ").append(formatNanos(HookStats.percentile(totals.histogram, 0, 99)))
+                    .append(", max < ").append(formatNanos(HookStats.percentile(totals.histogram, 0, 100)))
+                    .append('\n');
+        }
+        mText.setText(sb);
+    }
+
+    private static String formatStartup(long nanos, int classes) {
+        return formatNanos(nanos) + ", " + (classes >= 0 ? String.valueOf(classes) : "?") + " classes";
+    }
+
+    private static String formatNanos(long nanos) {
+        if (nanos < 0)
+            return "-";
+        if (nanos < 1000000)
+            return (nanos / 1000) + "us";
+        return (nanos / 1000000) + "ms";
+    }
+
+    private static class HookTotals {
+
+        private long calls;
+        private long hits;
+        private long misses;
+        private final long[] histogram = new long[HookStats.BUCKETS];
+    }
+}
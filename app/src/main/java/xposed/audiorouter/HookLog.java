@@ -0,0 +1,140 @@
+package xposed.audiorouter;
+
+import android.os.SystemClock;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import de.robv.android.xposed.XposedBridge;
+
+/**
+ * Logging for the hook side. Per-call messages go through {@link #d(int, String, int)}, which is
+ * rate limited per hook and only records into a preallocated ring buffer; a daemon thread formats
+ * and writes them to the Xposed log. Messages must be constants so that recording never allocates.
+ */
+public final class HookLog {
+
+    public static final int NONE = 0;
+    public static final int ERROR = 1;
+    public static final int INFO = 2;
+    public static final int DEBUG = 3;
+    public static final int DEFAULT_LEVEL = BuildConfig.DEBUG ? DEBUG : INFO;
+
+    private static final int MAX_HOOKS = 16;
+    private static final int RING_SIZE = 256; // Power of two
+    private static final int RATE_LIMIT = 10; // Per hook, per window
+    private static final long RATE_WINDOW_MS = 1000;
+    private static final long FLUSH_INTERVAL_MS = 1000;
+
+    private static volatile int mLevel = DEFAULT_LEVEL;
+    private static String mTag = "";
+
+    private static final String[] mHookNames = new String[MAX_HOOKS];
+    private static volatile int mHookCount;
+    // Unsynchronized, a racing caller can at worst let an extra message through
+    private static final long[] mWindowStart = new long[MAX_HOOKS];
+    private static final int[] mWindowCount = new int[MAX_HOOKS];
+    private static final AtomicLongArray mSuppressed = new AtomicLongArray(MAX_HOOKS);
+
+    private static final AtomicLong mHead = new AtomicLong();
+    private static final AtomicLongArray mPublished = new AtomicLongArray(RING_SIZE);
+    private static final int[] mHooks = new int[RING_SIZE];
+    private static final String[] mMessages = new String[RING_SIZE];
+    private static final int[] mArgs = new int[RING_SIZE];
+
+    private static Thread mFlusher;
+
+    private HookLog() {
+    }
+
+    public static void setLevel(int level) {
+        mLevel = level;
+    }
+
+    public static void setTag(String tag) {
+        mTag = null != tag ? "[" + tag + "] " : "";
+    }
+
+    public static boolean isLoggable(int level) {
+        return level <= mLevel;
+    }
+
+    public static synchronized int registerHook(String name) {
+        if (mHookCount == MAX_HOOKS)
+            throw new IllegalStateException("Too many hooks registered");
+        mHookNames[mHookCount] = name;
+        if (isLoggable(DEBUG))
+            startFlusher();
+        return mHookCount++;
+    }
+
+    public static void e(String message) {
+        if (isLoggable(ERROR))
+            XposedBridge.log(mTag + message);
+    }
+
+    public static void i(String message) {
+        if (isLoggable(INFO))
+            XposedBridge.log(mTag + message);
+    }
+
+    public static void d(int hook, String message, int arg) {
+        if (!isLoggable(DEBUG))
+            return;
+        long now = SystemClock.uptimeMillis();
+        if (now - mWindowStart[hook] >= RATE_WINDOW_MS) {
+            mWindowStart[hook] = now;
+            mWindowCount[hook] = 0;
+        }
+        if (++mWindowCount[hook] > RATE_LIMIT) {
+            mSuppressed.incrementAndGet(hook);
+            return;
+        }
+        long sequence = mHead.getAndIncrement();
+        int slot = (int) (sequence & (RING_SIZE - 1));
+        mHooks[slot] = hook;
+        mMessages[slot] = message;
+        mArgs[slot] = arg;
+        mPublished.set(slot, sequence + 1);
+    }
+
+    private static synchronized void startFlusher() {
+        if (null != mFlusher)
+            return;
+        mFlusher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long cursor = 0;
+                while (true) {
+                    SystemClock.sleep(FLUSH_INTERVAL_MS);
+                    cursor = flush(cursor);
+                }
+            }
+        }, "AudioRouterLog");
+        mFlusher.setDaemon(true);
+        mFlusher.start();
+    }
+
+    private static long flush(long cursor) {
+        long head = mHead.get();
+        if (head - cursor > RING_SIZE) {
+            XposedBridge.log(mTag + (head - cursor - RING_SIZE) + " log messages lost");
+            cursor = head - RING_SIZE;
+        }
+        for (; cursor < head; cursor++) {
+            int slot = (int) (cursor & (RING_SIZE - 1));
+            long published = mPublished.get(slot);
+            if (published < cursor + 1)
+                break; // Writer has claimed the slot but not finished with it yet
+            if (published > cursor + 1)
+                continue; // Overwritten since we read the head
+            XposedBridge.log(mTag + mHookNames[mHooks[slot]] + ": " + mMessages[slot] + " [" + mArgs[slot] + "]");
+        }
+        for (int i = 0; i < mHookCount; i++) {
+            long suppressed = mSuppressed.getAndSet(i, 0);
+            if (suppressed > 0)
+                XposedBridge.log(mTag + mHookNames[i] + ": " + suppressed + " messages suppressed");
+        }
+        return cursor;
+    }
+}
@@ -0,0 +1,359 @@
+package xposed.audiorouter;
+
+import android.annotation.TargetApi;
+import android.media.AudioAttributes;
+import android.media.AudioTrack;
+import android.media.MediaPlayer;
+import android.media.SoundPool;
+import android.os.Build;
+import android.os.Trace;
+
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import de.robv.android.xposed.XC_MethodHook;
+import de.robv.android.xposed.XposedBridge;
+import xposed.audiorouter.rules.RoutingTable;
+
+import static de.robv.android.xposed.XposedHelpers.findAndHookConstructor;
+import static de.robv.android.xposed.XposedHelpers.findAndHookMethod;
+import static de.robv.android.xposed.XposedHelpers.findFieldIfExists;
+
+/**
+ * Every audio entry point the module routes, one entry each. All entries share the process wide
+ * {@link RoutingDecision}, so covering another entry point adds no per-call lookup. Entries only
+ * read the usage being played when the package has per-usage rules. Attributes routed when they
+ * were built are passed on as they are, as routing overwrote the usage they were built with.
+ */
+final class HookRegistry {
+
+    interface DecisionSource {
+        RoutingDecision getDecision();
+    }
+
+    abstract static class Entry {
+
+        final String name;
+        final String message;
+        final String traceSection;
+        final int minSdk;
+
+        Entry(String name, String message, int minSdk) {
+            this.name = name;
+            this.message = message;
+            this.traceSection = "AudioRouter:" + name;
+            this.minSdk = minSdk;
+        }
+
+        abstract void hook(XC_MethodHook callback);
+
+        /**
+         * @return whether {@code table} would route some of this entry point's calls
+         */
+        boolean routes(RoutingTable table) {
+            return table.routesAnything();
+        }
+
+        /**
+         * @return the stream the call was routed to, or -1 if the decision leaves it alone
+         */
+        abstract int apply(XC_MethodHook.MethodHookParam param, RoutingDecision decision);
+
+        /**
+         * Called once the hooked method returns, if {@link #apply} routed the call.
+         */
+        void afterRouted(XC_MethodHook.MethodHookParam param) {
+        }
+    }
+
+    // Attributes the AudioAttributes.Builder.build entry routed, weakly and by identity, as apps
+    // can build attributes equal to ours themselves
+    private static final Map<AudioAttributes, WeakReference<AudioAttributes>> ROUTED_ATTRIBUTES =
+            Collections.synchronizedMap(new WeakHashMap<AudioAttributes, WeakReference<AudioAttributes>>());
+
+    private static final Entry[] ENTRIES = {
+            new Entry("MediaPlayer.prepare/prepareAsync", "AudioStreamType set to", Build.VERSION_CODES.LOLLIPOP) {
+                @Override
+                void hook(XC_MethodHook callback) {
+                    findAndHookMethod(MediaPlayer.class, "prepare", callback);
+                    findAndHookMethod(MediaPlayer.class, "prepareAsync", callback);
+                }
+
+                @Override
+                boolean routes(RoutingTable table) {
+                    return table.getDefaultStream() >= 0;
+                }
+
+                @Override
+                int apply(XC_MethodHook.MethodHookParam param, RoutingDecision decision) {
+                    // The player's own usage isn't readable here, so only the default applies
+                    if (decision.stream < 0)
+                        return -1;
+                    ((MediaPlayer) param.thisObject).setAudioStreamType(decision.stream);
+                    return decision.stream;
+                }
+            },
+            new Entry("AudioAttributes.Builder.build", "LegacyStreamType set to", Build.VERSION_CODES.LOLLIPOP) {
+                private Field usage;
+                private Field contentType;
+
+                @Override
+                void hook(XC_MethodHook callback) {
+                    usage = findFieldIfExists(AudioAttributes.Builder.class, "mUsage");
+                    contentType = findFieldIfExists(AudioAttributes.Builder.class, "mContentType");
+                    findAndHookMethod(AudioAttributes.Builder.class, "build", callback);
+                }
+
+                @Override
+                int apply(XC_MethodHook.MethodHookParam param, RoutingDecision decision) {
+                    int stream = decision.uniform ? decision.stream
+                            : decision.forAttributes(getInt(usage, param.thisObject), getInt(contentType, param.thisObject));
+                    if (stream < 0)
+                        return -1;
+                    ((AudioAttributes.Builder) param.thisObject).setLegacyStreamType(stream);
+                    return stream;
+                }
+
+                @Override
+                void afterRouted(XC_MethodHook.MethodHookParam param) {
+                    AudioAttributes built = (AudioAttributes) param.getResult();
+                    if (null != built)
+                        ROUTED_ATTRIBUTES.put(built, new WeakReference<>(built));
+                }
+            },
+            new Entry("AudioTrack.<init>", "StreamType set to", Build.VERSION_CODES.LOLLIPOP) {
+                @Override
+                void hook(XC_MethodHook callback) {
+                    XposedBridge.hookAllConstructors(AudioTrack.class, callback);
+                }
+
+                @Override
+                int apply(XC_MethodHook.MethodHookParam param, RoutingDecision decision) {
+                    // Legacy constructors take the stream type first, the newer ones AudioAttributes
+                    if (param.args.length == 0)
+                        return -1;
+                    int stream;
+                    if (param.args[0] instanceof Integer) {
+                        stream = decision.forLegacyStream((Integer) param.args[0]);
+                        if (stream >= 0)
+                            param.args[0] = stream;
+                    } else if (param.args[0] instanceof AudioAttributes) {
+                        AudioAttributes original = (AudioAttributes) param.args[0];
+                        if (isRouted(original))
+                            return -1;
+                        stream = decision.forAttributes(original);
+                        if (stream >= 0)
+                            param.args[0] = withStream(original, decision, stream);
+                    } else {
+                        return -1;
+                    }
+                    return stream < 0 ? -1 : stream;
+                }
+            },
+            new Entry("AudioTrack.Builder.build", "AudioAttributes set for stream", Build.VERSION_CODES.M) {
+                private Field attributes;
+
+                @Override
+                void hook(XC_MethodHook callback) {
+                    attributes = findFieldIfExists(AudioTrack.Builder.class, "mAttributes");
+                    findAndHookMethod(AudioTrack.Builder.class, "build", callback);
+                }
+
+                @TargetApi(Build.VERSION_CODES.M)
+                @Override
+                int apply(XC_MethodHook.MethodHookParam param, RoutingDecision decision) {
+                    AudioAttributes original = getAttributes(attributes, param.thisObject);
+                    if (isRouted(original))
+                        return -1;
+                    int stream = decision.uniform ? decision.stream : decision.forAttributes(original);
+                    if (stream < 0)
+                        return -1;
+                    ((AudioTrack.Builder) param.thisObject).setAudioAttributes(withStream(original, decision, stream));
+                    return stream;
+                }
+            },
+            new Entry("SoundPool.<init>", "StreamType set to", Build.VERSION_CODES.LOLLIPOP) {
+                @Override
+                void hook(XC_MethodHook callback) {
+                    findAndHookConstructor(SoundPool.class, int.class, int.class, int.class, callback);
+                }
+
+                @Override
+                int apply(XC_MethodHook.MethodHookParam param, RoutingDecision decision) {
+                    int stream = decision.forLegacyStream((Integer) param.args[1]);
+                    if (stream < 0)
+                        return -1;
+                    param.args[1] = stream;
+                    return stream;
+                }
+            },
+            new Entry("SoundPool.Builder.build", "AudioAttributes set for stream", Build.VERSION_CODES.LOLLIPOP) {
+                private Field attributes;
+
+                @Override
+                void hook(XC_MethodHook callback) {
+                    attributes = findFieldIfExists(SoundPool.Builder.class, "mAudioAttributes");
+                    findAndHookMethod(SoundPool.Builder.class, "build", callback);
+                }
+
+                @Override
+                int apply(XC_MethodHook.MethodHookParam param, RoutingDecision decision) {
+                    AudioAttributes original = getAttributes(attributes, param.thisObject);
+                    if (isRouted(original))
+                        return -1;
+                    int stream = decision.uniform ? decision.stream : decision.forAttributes(original);
+                    if (stream < 0)
+                        return -1;
+                    ((SoundPool.Builder) param.thisObject).setAudioAttributes(withStream(original, decision, stream));
+                    return stream;
+                }
+            },
+    };
+
+    private HookRegistry() {
+    }
+
+    static void installAll(DecisionSource source, boolean trace) {
+        for (Entry entry : ENTRIES) {
+            if (Build.VERSION.SDK_INT < entry.minSdk)
+                continue;
+            try {
+                entry.hook(new RoutingHook(entry, source, trace));
+            } catch (Throwable t) {
+                HookLog.e("Error hooking " + entry.name + ", " + t.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @return the names of the entry points on this platform version {@code table} would route
+     */
+    static List<String> getRoutedEntries(RoutingTable table) {
+        List<String> names = new ArrayList<>();
+        for (Entry entry : ENTRIES) {
+            if (Build.VERSION.SDK_INT >= entry.minSdk && entry.routes(table))
+                names.add(entry.name);
+        }
+        return names;
+    }
+
+    /**
+     * @return {@code field}'s value on {@code object}, or -1 (out of range for every table) when
+     * this platform version doesn't have the field
+     */
+    private static int getInt(Field field, Object object) {
+        if (null == field)
+            return -1;
+        try {
+            return field.getInt(object);
+        } catch (IllegalAccessException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return {@code original} routed to {@code stream}, keeping the app's flags and tags, or the
+     * decision's prebuilt attributes when the app didn't set any
+     */
+    private static AudioAttributes withStream(AudioAttributes original, RoutingDecision decision, int stream) {
+        if (null == original)
+            return decision.attributesFor(stream);
+        // Runs inside a routing hook, so the build() hook leaves it alone
+        return new AudioAttributes.Builder(original).setLegacyStreamType(stream).build();
+    }
+
+    /**
+     * @return whether {@code attributes} already went through the AudioAttributes.Builder.build
+     * entry, so routing them again would look the stream up from a usage the app never set
+     */
+    private static boolean isRouted(AudioAttributes attributes) {
+        if (null == attributes)
+            return false;
+        WeakReference<AudioAttributes> routed = ROUTED_ATTRIBUTES.get(attributes);
+        return null != routed && routed.get() == attributes;
+    }
+
+    private static AudioAttributes getAttributes(Field field, Object object) {
+        if (null == field)
+            return null;
+        try {
+            return (AudioAttributes) field.get(object);
+        } catch (IllegalAccessException e) {
+            return null;
+        }
+    }
+
+    private static final class RoutingHook extends XC_MethodHook {
+
+        // How many routing hooks the thread is inside, and whether the outermost one routed its
+        // call. The framework builds AudioAttributes within the other entry points, and the
+        // build() hook must not route those again
+        private static final ThreadLocal<Frame> FRAME = new ThreadLocal<Frame>() {
+            @Override
+            protected Frame initialValue() {
+                return new Frame();
+            }
+        };
+
+        private final Entry entry;
+        private final DecisionSource source;
+        private final boolean trace;
+        private final int logId;
+        private final int statsId;
+
+        RoutingHook(Entry entry, DecisionSource source, boolean trace) {
+            this.entry = entry;
+            this.source = source;
+            this.trace = trace;
+            this.logId = HookLog.registerHook(entry.name);
+            this.statsId = HookStats.registerHook(entry.name);
+        }
+
+        @Override
+        protected void beforeHookedMethod(MethodHookParam param) throws Throwable {
+            Frame frame = FRAME.get();
+            if (frame.depth++ > 0)
+                return;
+            frame.routed = false;
+            long start = System.nanoTime();
+            boolean routed = false;
+            if (trace)
+                Trace.beginSection(entry.traceSection);
+            try {
+                RoutingDecision decision = source.getDecision();
+                if (decision.isRouted()) {
+                    int stream = entry.apply(param, decision);
+                    if (routed = stream >= 0)
+                        HookLog.d(logId, entry.message, stream);
+                }
+            } finally {
+                if (trace)
+                    Trace.endSection();
+                HookStats.record(statsId, routed, start, System.nanoTime() - start);
+                frame.routed = routed;
+            }
+        }
+
+        @Override
+        protected void afterHookedMethod(MethodHookParam param) throws Throwable {
+            Frame frame = FRAME.get();
+            if (--frame.depth > 0 || !frame.routed)
+                return;
+            try {
+                entry.afterRouted(param);
+            } catch (Throwable t) {
+                HookLog.e("Error after " + entry.name + ", " + t.getMessage());
+            }
+        }
+    }
+
+    private static final class Frame {
+        int depth;
+        boolean routed;
+    }
+}
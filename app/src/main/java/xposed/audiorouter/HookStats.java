@@ -0,0 +1,149 @@
+package xposed.audiorouter;
+
+import android.os.Bundle;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Per-hook counters and latency histograms for the current process. Histogram bucket {@code i}
+ * counts calls that took less than {@code 1024 << i} ns; the last bucket takes everything slower.
+ * <p>
+ * Hit and miss counters are striped by thread, so hooks firing on many threads at once don't all
+ * bounce the same cache line; readers sum the stripes.
+ */
+public final class HookStats {
+
+    public static final int BUCKETS = 16;
+
+    static final String EXTRA_PACKAGE = "package";
+    static final String EXTRA_HOOKS = "hooks";
+    static final String EXTRA_CALLS = "calls";
+    static final String EXTRA_HITS = "hits";
+    static final String EXTRA_MISSES = "misses";
+    static final String EXTRA_HISTOGRAM = "histogram";
+
+    static final int MAX_HOOKS = 16;
+    private static final int STRIPES = 8; // Power of two
+
+    private static final String[] mHookNames = new String[MAX_HOOKS];
+    private static volatile int mHookCount;
+    // One row of MAX_HOOKS counters per stripe, so a stripe's row spans its own cache lines
+    private static final AtomicLongArray mHits = new AtomicLongArray(STRIPES * MAX_HOOKS);
+    private static final AtomicLongArray mMisses = new AtomicLongArray(STRIPES * MAX_HOOKS);
+    private static final AtomicLongArray mLastHitNanos = new AtomicLongArray(STRIPES * MAX_HOOKS);
+    private static final AtomicLongArray mHistogram = new AtomicLongArray(MAX_HOOKS * BUCKETS);
+
+    private HookStats() {
+    }
+
+    public static synchronized int registerHook(String name) {
+        if (mHookCount == MAX_HOOKS)
+            throw new IllegalStateException("Too many hooks registered");
+        mHookNames[mHookCount] = name;
+        return mHookCount++;
+    }
+
+    public static void record(int hook, boolean hit, long startNanos, long elapsedNanos) {
+        int slot = stripe() * MAX_HOOKS + hook;
+        if (hit) {
+            mHits.incrementAndGet(slot);
+            mLastHitNanos.lazySet(slot, startNanos);
+            RuleTelemetry.onHit();
+        } else {
+            mMisses.incrementAndGet(slot);
+        }
+        mHistogram.incrementAndGet(hook * BUCKETS + bucketFor(elapsedNanos));
+    }
+
+    private static int stripe() {
+        return (int) Thread.currentThread().getId() & (STRIPES - 1);
+    }
+
+    static int getHookCount() {
+        return mHookCount;
+    }
+
+    static String getHookName(int hook) {
+        return mHookNames[hook];
+    }
+
+    static long getHits(int hook) {
+        return sum(mHits, hook);
+    }
+
+    static long getMisses(int hook) {
+        return sum(mMisses, hook);
+    }
+
+    /**
+     * @return the {@link System#nanoTime()} at which {@code hook} last routed a call, or 0 if it
+     * never did
+     */
+    static long getLastHitNanos(int hook) {
+        long last = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            long nanos = mLastHitNanos.get(i * MAX_HOOKS + hook);
+            if (nanos != 0 && (last == 0 || nanos - last > 0))
+                last = nanos;
+        }
+        return last;
+    }
+
+    private static long sum(AtomicLongArray counters, int hook) {
+        long total = 0;
+        for (int i = 0; i < STRIPES; i++)
+            total += counters.get(i * MAX_HOOKS + hook);
+        return total;
+    }
+
+    static int bucketFor(long nanos) {
+        int bucket = 63 - Long.numberOfLeadingZeros(nanos >> 10) + 1;
+        return Math.min(bucket, BUCKETS - 1);
+    }
+
+    /**
+     * @return the upper bound in ns of the bucket holding the {@code percentile}th call, or -1 if
+     * there were no calls
+     */
+    public static long percentile(long[] histogram, int offset, double percentile) {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++)
+            total += histogram[offset + i];
+        if (total == 0)
+            return -1;
+        long rank = (long) Math.ceil(total * percentile / 100d);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += histogram[offset + i];
+            if (seen >= rank)
+                return 1024L << i;
+        }
+        return 1024L << (BUCKETS - 1);
+    }
+
+    static Bundle toBundle(String packageName) {
+        int count = mHookCount;
+        String[] hooks = new String[count];
+        long[] calls = new long[count];
+        long[] hits = new long[count];
+        long[] misses = new long[count];
+        long[] histogram = new long[count * BUCKETS];
+        for (int i = 0; i < count; i++) {
+            hooks[i] = mHookNames[i];
+            hits[i] = getHits(i);
+            misses[i] = getMisses(i);
+            calls[i] = hits[i] + misses[i];
+            for (int j = 0; j < BUCKETS; j++)
+                histogram[i * BUCKETS + j] = mHistogram.get(i * BUCKETS + j);
+        }
+        Bundle bundle = new Bundle();
+        bundle.putString(EXTRA_PACKAGE, packageName);
+        bundle.putStringArray(EXTRA_HOOKS, hooks);
+        bundle.putLongArray(EXTRA_CALLS, calls);
+        bundle.putLongArray(EXTRA_HITS, hits);
+        bundle.putLongArray(EXTRA_MISSES, misses);
+        bundle.putLongArray(EXTRA_HISTOGRAM, histogram);
+        StartupStats.addTo(bundle);
+        return bundle;
+    }
+}
@@ -1,102 +1,174 @@
 package xposed.audiorouter;
 
+import android.app.TimePickerDialog;
 import android.content.ActivityNotFoundException;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.SharedPreferences;
-import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
-import android.content.pm.ResolveInfo;
-import android.content.res.AssetFileDescriptor;
 import android.media.AudioManager;
-import android.media.MediaPlayer;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.annotation.Nullable;
 import android.support.v7.app.AlertDialog;
 import android.support.v7.app.AppCompatActivity;
+import android.support.v7.util.DiffUtil;
+import android.support.v7.view.ActionMode;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.text.TextUtils;
+import android.text.format.DateUtils;
 import android.util.Log;
+import android.util.SparseArray;
 import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.AdapterView;
-import android.widget.BaseAdapter;
+import android.widget.EditText;
 import android.widget.ImageView;
-import android.widget.ListView;
 import android.widget.TextView;
+import android.widget.TimePicker;
+import android.widget.Toast;
 
-import com.google.gson.Gson;
-import com.google.gson.reflect.TypeToken;
-
-import java.io.IOException;
+import java.text.DateFormat;
 import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
-
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import xposed.audiorouter.rules.PackageMatcher;
+import xposed.audiorouter.rules.Rule;
+import xposed.audiorouter.rules.RuleCondition;
+import xposed.audiorouter.rules.RuleList;
+import xposed.audiorouter.rules.RuleSets;
+import xposed.audiorouter.rules.RuleSnapshot;
+import xposed.audiorouter.rules.Rules;
+import xposed.audiorouter.rules.UsageRule;
+import xposed.audiorouter.utils.IconLoader;
 import xposed.audiorouter.utils.PackageUtils;
+import xposed.audiorouter.utils.TestSoundPlayer;
 
-public class MainActivity extends AppCompatActivity implements View.OnClickListener {
+public class MainActivity extends AppCompatActivity implements View.OnClickListener,
+        RuleStore.OnRulesLoadedListener, RuleStore.OnTransferListener {
 
     private static final String TAG = MainActivity.class.getSimpleName();
     private static final String LAUNCHER_ALIAS = "xposed.audiorouter.Launcher";
     private static final String PREF_HIDE_ICON = "hide_icon";
+    private static final String PREF_TEST_STREAM = "test_stream";
+    private static final String EXPORT_FILE_NAME = "audio-router-rules.json";
+    private static final int REQUEST_IMPORT_MERGE = 1;
+    private static final int REQUEST_IMPORT_REPLACE = 2;
+    private static final int REQUEST_EXPORT = 3;
+    private static final long TELEMETRY_REFRESH_DELAY_MS = 500;
 
-    private Gson mGson = new Gson();
     private SharedPreferences mPrefs;
-    private MediaPlayer mMediaPlayer;
+    private RuleStore mRuleStore;
+    private View mFab;
+    private TestSoundPlayer mTestSound;
     private ApplicationRuleAdapter mAdapter;
-    private List<Rule> mRulesList;
+    private RuleList mRulesList;
+    private ActionMode mActionMode;
+    private SharedPreferences mTelemetry;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mRefreshRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (null != mRulesList)
+                mAdapter.setRules(mRulesList);
+        }
+    };
+    // Held here, the preferences only keep a weak reference to it
+    private final SharedPreferences.OnSharedPreferenceChangeListener mTelemetryListener =
+            new SharedPreferences.OnSharedPreferenceChangeListener() {
+                @Override
+                public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+                    // Reports from several processes tend to arrive together
+                    mHandler.removeCallbacks(mRefreshRunnable);
+                    mHandler.postDelayed(mRefreshRunnable, TELEMETRY_REFRESH_DELAY_MS);
+                }
+            };
 
     @Override
     protected void onCreate(@Nullable Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         mPrefs = getSharedPreferences(Xposed.PREFERENCES, MODE_WORLD_READABLE);
+        mRuleStore = RuleStore.getInstance(this);
+        mTestSound = new TestSoundPlayer(this, R.raw.test, new TestSoundPlayer.Listener() {
+            @Override
+            public void onPlaybackStateChanged() {
+                invalidateOptionsMenu();
+            }
+        });
+        mTestSound.preload(getTestStream());
 
         setContentView(R.layout.activity_main);
 
-        ListView listView = (ListView) findViewById(android.R.id.list);
-        listView.setEmptyView(findViewById(android.R.id.empty));
-        listView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+        RecyclerView listView = (RecyclerView) findViewById(android.R.id.list);
+        listView.setLayoutManager(new LinearLayoutManager(this));
+        listView.setAdapter(mAdapter = new ApplicationRuleAdapter(this));
+        final View emptyView = findViewById(android.R.id.empty);
+        mAdapter.registerAdapterDataObserver(new RecyclerView.AdapterDataObserver() {
             @Override
-            public void onItemClick(AdapterView<?> adapterView, View view, int position, long l) {
-                Log.d(TAG, "onItemClick: ");
-                showStreamSelectDialog(mAdapter.getItem(position));
+            public void onChanged() {
+                emptyView.setVisibility(mAdapter.getItemCount() == 0 ? View.VISIBLE : View.GONE);
             }
-        });
-        listView.setOnItemLongClickListener(new AdapterView.OnItemLongClickListener() {
+
             @Override
-            public boolean onItemLongClick(AdapterView<?> adapterView, View view, int position, long l) {
-                Log.d(TAG, "onItemLongClick: " + position);
-                deleteRule(mAdapter.getItem(position));
-                return true;
+            public void onItemRangeInserted(int positionStart, int itemCount) {
+                onChanged();
+            }
+
+            @Override
+            public void onItemRangeRemoved(int positionStart, int itemCount) {
+                onChanged();
             }
         });
-        listView.setAdapter(mAdapter = new ApplicationRuleAdapter(this));
 
-        findViewById(R.id.fab).setOnClickListener(this);
+        mFab = findViewById(R.id.fab);
+        mFab.setOnClickListener(this);
+        // Rules added before the saved ones are loaded would be dropped by the load
+        mFab.setVisibility(View.GONE);
+        mRuleStore.load(this);
+
+        mTelemetry = TelemetryReceiver.getPrefs(this);
+        mTelemetry.registerOnSharedPreferenceChangeListener(mTelemetryListener);
     }
 
     @Override
     protected void onResume() {
         super.onResume();
-        loadRules();
+        // Rules of apps uninstalled meanwhile have been dropped from the live list
+        if (null != mRulesList)
+            mAdapter.setRules(mRulesList);
+        // Have hooked processes report their pending hits now rather than at their next flush
+        sendBroadcast(new Intent(RuleTelemetry.ACTION_FLUSH_TELEMETRY));
     }
 
     @Override
     protected void onPause() {
         super.onPause();
-        persistRules();
+        mRuleStore.flush();
     }
 
     @Override
     protected void onDestroy() {
         super.onDestroy();
-        if (null != mMediaPlayer) {
-            mMediaPlayer.release();
-            mMediaPlayer = null;
-        }
+        mRuleStore.removeListener(this);
+        mTelemetry.unregisterOnSharedPreferenceChangeListener(mTelemetryListener);
+        mHandler.removeCallbacks(mRefreshRunnable);
+        mAdapter.shutdown();
+        mTestSound.release();
     }
 
     @Override
@@ -109,8 +181,11 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
 
     @Override
     public boolean onPrepareOptionsMenu(Menu menu) {
-        menu.findItem(R.id.item_play_test).setIcon(isMediaPlaying() ? R.drawable.ic_stop_white_24dp : R.drawable.ic_play_arrow_white_24dp);
+        menu.findItem(R.id.item_play_test).setIcon(mTestSound.isPlaying() ? R.drawable.ic_stop_white_24dp : R.drawable.ic_play_arrow_white_24dp);
         menu.findItem(R.id.item_hide_icon).setChecked(mPrefs.getBoolean(PREF_HIDE_ICON, false));
+        menu.findItem(R.id.item_verbose_logging).setChecked(isVerboseLogging());
+        menu.findItem(R.id.item_undo).setEnabled(mRuleStore.canUndo());
+        menu.findItem(R.id.item_trace_hooks).setChecked(mPrefs.getBoolean(Xposed.PREF_TRACE_HOOKS, false));
         return true;
     }
 
@@ -120,12 +195,47 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
             case R.id.item_play_test:
                 playTestSound();
                 return true;
+            case R.id.item_undo:
+                if (mRuleStore.undo())
+                    mAdapter.setRules(mRulesList);
+                invalidateOptionsMenu();
+                return true;
+            case R.id.item_test_stream:
+                showTestStreamDialog();
+                return true;
             case R.id.item_hide_icon:
                 boolean hideIcon = mPrefs.getBoolean(PREF_HIDE_ICON, false);
                 setLauncherAliasEnabled(hideIcon);
                 mPrefs.edit().putBoolean(PREF_HIDE_ICON, !hideIcon).apply();
                 invalidateOptionsMenu();
                 return true;
+            case R.id.item_add_wildcard_rule:
+                showWildcardRuleDialog();
+                return true;
+            case R.id.item_import_rules:
+                showImportModeDialog();
+                return true;
+            case R.id.item_export_rules:
+                startActivityForResult(new Intent(Intent.ACTION_CREATE_DOCUMENT)
+                        .addCategory(Intent.CATEGORY_OPENABLE)
+                        .setType("application/json")
+                        .putExtra(Intent.EXTRA_TITLE, EXPORT_FILE_NAME), REQUEST_EXPORT);
+                return true;
+            case R.id.item_preview_routing:
+                PreviewDialog.newInstance().show(getSupportFragmentManager(), PreviewDialog.TAG);
+                return true;
+            case R.id.item_diagnostics:
+                DiagnosticsDialog.newInstance().show(getSupportFragmentManager(), DiagnosticsDialog.TAG);
+                return true;
+            case R.id.item_trace_hooks:
+                boolean traceHooks = mPrefs.getBoolean(Xposed.PREF_TRACE_HOOKS, false);
+                mPrefs.edit().putBoolean(Xposed.PREF_TRACE_HOOKS, !traceHooks).apply();
+                invalidateOptionsMenu();
+                return true;
+            case R.id.item_verbose_logging:
+                mPrefs.edit().putInt(Xposed.PREF_LOG_LEVEL, isVerboseLogging() ? HookLog.INFO : HookLog.DEBUG).apply();
+                invalidateOptionsMenu();
+                return true;
         }
         return super.onOptionsItemSelected(item);
     }
@@ -139,89 +249,446 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
         }
     }
 
-    private void loadRules() {
-        String json = mPrefs.getString("rules", "");
-        mRulesList = mGson.fromJson(json, new TypeToken<List<Rule>>() {
-        }.getType());
-        mAdapter.notifyDataSetChanged();
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        super.onActivityResult(requestCode, resultCode, data);
+        if (resultCode != RESULT_OK || null == data || null == data.getData())
+            return;
+        switch (requestCode) {
+            case REQUEST_IMPORT_MERGE:
+            case REQUEST_IMPORT_REPLACE:
+                mRuleStore.importRules(data.getData(), requestCode == REQUEST_IMPORT_REPLACE, this);
+                break;
+            case REQUEST_EXPORT:
+                mRuleStore.exportRules(data.getData(), this);
+                break;
+        }
     }
 
-    private void persistRules() {
-        String json = mGson.toJson(mRulesList);
-        mPrefs.edit().putString("rules", json).apply();
+    @Override
+    public void onImported(RuleSets.Report report) {
+        if (isDestroyed())
+            return;
+        mAdapter.setRules(mRulesList);
+        invalidateOptionsMenu();
+        StringBuilder message = new StringBuilder(getString(R.string.import_summary,
+                report.getAccepted(), report.getRead(), report.getElapsedMillis()));
+        if (report.getRejected() > 0) {
+            message.append("\n\n").append(getString(R.string.import_rejected, report.getRejected()));
+            for (String error : report.getErrors())
+                message.append('\n').append(error);
+        }
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.import_rules)
+                .setMessage(message)
+                .setPositiveButton(android.R.string.ok, null)
+                .create().show();
     }
 
-    private void addRule(Rule rule) {
-        if (null == mRulesList)
-            mRulesList = new ArrayList<>();
-        mRulesList.add(rule);
-        mAdapter.notifyDataSetChanged();
+    @Override
+    public void onExported(int count, long elapsedMillis) {
+        if (isDestroyed())
+            return;
+        Toast.makeText(this, getString(R.string.export_summary, count, elapsedMillis), Toast.LENGTH_SHORT).show();
     }
 
-    private void deleteRule(Rule rule) {
-        mRulesList.remove(rule);
-        mAdapter.notifyDataSetChanged();
+    @Override
+    public void onTransferFailed(String message) {
+        if (isDestroyed())
+            return;
+        Toast.makeText(this, getString(R.string.transfer_failed, message), Toast.LENGTH_LONG).show();
     }
 
-    private void playTestSound() {
-        if (isMediaPlaying()) {
-            mMediaPlayer.stop();
-            mMediaPlayer.reset();
-            invalidateOptionsMenu();
-        } else {
-            try {
-                AssetFileDescriptor afd = getResources().openRawResourceFd(R.raw.test);
-                mMediaPlayer = new MediaPlayer();
-                mMediaPlayer.setAudioStreamType(AudioManager.STREAM_MUSIC);
-                mMediaPlayer.setDataSource(afd.getFileDescriptor(), afd.getStartOffset(), afd.getLength());
-                mMediaPlayer.setOnPreparedListener(new MediaPlayer.OnPreparedListener() {
+    private void showImportModeDialog() {
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.import_rules)
+                .setItems(R.array.import_modes, new DialogInterface.OnClickListener() {
                     @Override
-                    public void onPrepared(MediaPlayer mediaPlayer) {
-                        mediaPlayer.start();
-                        invalidateOptionsMenu();
+                    public void onClick(DialogInterface dialogInterface, int which) {
+                        startActivityForResult(new Intent(Intent.ACTION_OPEN_DOCUMENT)
+                                .addCategory(Intent.CATEGORY_OPENABLE)
+                                .setType("*/*"), which == 0 ? REQUEST_IMPORT_MERGE : REQUEST_IMPORT_REPLACE);
                     }
-                });
-                mMediaPlayer.prepareAsync();
-            } catch (IOException e) {
-                Log.e(TAG, "onCreate: Error preparing MediaPlayer, " + e.getMessage());
-            }
+                }).create().show();
+    }
+
+    @Override
+    public void onRulesLoaded(RuleList rules) {
+        mRulesList = rules;
+        mAdapter.setRules(mRulesList);
+        mFab.setVisibility(View.VISIBLE);
+        if (null != mRuleStore.getLoadError())
+            showLoadErrorDialog(mRuleStore.getLoadError());
+    }
+
+    private void showLoadErrorDialog(String message) {
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.rules_unreadable)
+                .setMessage(getString(R.string.rules_unreadable_message, message))
+                .setNegativeButton(R.string.keep_saved_rules, null)
+                .setPositiveButton(R.string.discard_saved_rules, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialogInterface, int which) {
+                        mRuleStore.discardUnreadableRules();
+                    }
+                }).create().show();
+    }
+
+    private void addRule(Rule rule) {
+        if (!mRulesList.add(rule)) {
+            Toast.makeText(this, getString(R.string.rule_exists, rule.getPackageName()), Toast.LENGTH_SHORT).show();
+            showStreamSelectDialog(mRulesList.get(rule.getPackageName()));
+            return;
         }
+        onRuleChanged(rule.getPackageName());
+    }
+
+    private void startSelection(String packageName) {
+        mAdapter.toggleSelection(packageName);
+        mActionMode = startSupportActionMode(new ActionMode.Callback() {
+            @Override
+            public boolean onCreateActionMode(ActionMode mode, Menu menu) {
+                mode.getMenuInflater().inflate(R.menu.rule_selection, menu);
+                return true;
+            }
+
+            @Override
+            public boolean onPrepareActionMode(ActionMode mode, Menu menu) {
+                int count = mAdapter.getSelection().size();
+                mode.setTitle(getResources().getQuantityString(R.plurals.selected_rules, count, count));
+                return true;
+            }
+
+            @Override
+            public boolean onActionItemClicked(ActionMode mode, MenuItem item) {
+                switch (item.getItemId()) {
+                    case R.id.item_assign_stream:
+                        showBulkStreamDialog();
+                        return true;
+                    case R.id.item_delete_rules:
+                        // One edit for the whole selection: a single diff, undo step and write
+                        Set<String> selection = new HashSet<>(mAdapter.getSelection());
+                        mRulesList.removeAll(selection);
+                        mode.finish();
+                        onRuleChanged(selection);
+                        return true;
+                    case R.id.item_select_all:
+                        mAdapter.selectAll();
+                        mode.invalidate();
+                        return true;
+                }
+                return false;
+            }
+
+            @Override
+            public void onDestroyActionMode(ActionMode mode) {
+                mActionMode = null;
+                mAdapter.clearSelection();
+            }
+        });
     }
 
-    private boolean isMediaPlaying() {
-        return null != mMediaPlayer && mMediaPlayer.isPlaying();
+    private void onSelectionChanged() {
+        if (null == mActionMode)
+            return;
+        if (mAdapter.getSelection().isEmpty())
+            mActionMode.finish();
+        else
+            mActionMode.invalidate();
+    }
+
+    private void showBulkStreamDialog() {
+        final List<String> selection = new ArrayList<>(mAdapter.getSelection());
+        newStreamSelectDialog(getResources().getQuantityString(R.plurals.selected_rules, selection.size(),
+                selection.size()), Integer.MIN_VALUE, new OnStreamSelectedListener() {
+            @Override
+            public void onStreamSelected(int stream) {
+                for (String packageName : selection) {
+                    Rule rule = mRulesList.get(packageName);
+                    if (null != rule)
+                        rule.setStream(stream);
+                }
+                if (null != mActionMode)
+                    mActionMode.finish();
+                onRuleChanged(selection);
+            }
+        }).create().show();
+    }
+
+    private void playTestSound() {
+        if (mTestSound.isPlaying())
+            mTestSound.stop();
+        else
+            mTestSound.play(getTestStream());
+    }
+
+    private int getTestStream() {
+        int stream = mPrefs.getInt(PREF_TEST_STREAM, -1);
+        return stream != -1 ? stream : AudioManager.STREAM_MUSIC;
+    }
+
+    private void showTestStreamDialog() {
+        newStreamSelectDialog(getString(R.string.test_stream), mPrefs.getInt(PREF_TEST_STREAM, -1),
+                new OnStreamSelectedListener() {
+                    @Override
+                    public void onStreamSelected(int stream) {
+                        mPrefs.edit().putInt(PREF_TEST_STREAM, stream).apply();
+                        // Switching while playing restarts on the new stream, for quick A/B checks
+                        if (mTestSound.isPlaying())
+                            mTestSound.play(getTestStream());
+                        else
+                            mTestSound.preload(getTestStream());
+                    }
+                }).create().show();
     }
 
     private void showPackageSelectDialog() {
         PackageSelectDialog.newInstance(new PackageSelectDialog.OnPackageSelectedListener() {
             @Override
-            public void onPackageSelected(ResolveInfo resolveInfo) {
-                addRule(new Rule(resolveInfo.activityInfo.packageName));
+            public void onPackageSelected(String packageName) {
+                addRule(new Rule(packageName));
             }
         }).show(getSupportFragmentManager(), PackageSelectDialog.TAG);
     }
 
+    private void showWildcardRuleDialog() {
+        final EditText input = new EditText(this);
+        input.setSingleLine();
+        input.setHint(R.string.wildcard_rule_hint);
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.add_wildcard_rule)
+                .setView(input)
+                .setNegativeButton(android.R.string.cancel, null)
+                .setPositiveButton(android.R.string.ok, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialogInterface, int which) {
+                        String pattern = input.getText().toString().trim();
+                        if (!PackageMatcher.isPattern(pattern) || !Rules.isValidPackageName(pattern)) {
+                            Toast.makeText(MainActivity.this, R.string.invalid_wildcard_rule, Toast.LENGTH_SHORT).show();
+                            return;
+                        }
+                        addRule(new Rule(pattern));
+                    }
+                }).create().show();
+    }
+
     private void showStreamSelectDialog(final Rule rule) {
+        String packageName = rule.getPackageName();
+        AlertDialog.Builder builder = newStreamSelectDialog(PackageMatcher.isPattern(packageName) ? packageName
+                        : PackageUtils.getLabelForPackage(getPackageManager(), packageName),
+                rule.getStream(), new OnStreamSelectedListener() {
+                    @Override
+                    public void onStreamSelected(int stream) {
+                        if (rule.getStream() == stream)
+                            return;
+                        rule.setStream(stream);
+                        onRuleChanged(rule.getPackageName());
+                    }
+                });
+        builder.setNeutralButton(R.string.by_usage, new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialogInterface, int which) {
+                showUsageSelectDialog(rule);
+            }
+        }).setNegativeButton(R.string.conditions, new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialogInterface, int which) {
+                showConditionsDialog(rule);
+            }
+        }).create().show();
+    }
+
+    private void showConditionsDialog(final Rule rule) {
+        final String[] states = getResources().getStringArray(R.array.condition_states);
+        final RuleCondition condition = getCondition(rule);
+        String window = getString(R.string.any_time);
+        if (condition.hasWindow())
+            window = getString(R.string.time_window, formatMinuteOfDay(condition.getWindowStart()),
+                    formatMinuteOfDay(condition.getWindowEnd()));
+        String[] items = {
+                getString(R.string.condition_headset, states[getConditionState(condition, RuleCondition.STATE_HEADSET)]),
+                getString(R.string.condition_bluetooth, states[getConditionState(condition, RuleCondition.STATE_BLUETOOTH)]),
+                getString(R.string.condition_time, window),
+        };
+        new AlertDialog.Builder(this)
+                .setCancelable(true)
+                .setTitle(R.string.conditions)
+                .setItems(items, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialogInterface, int which) {
+                        if (which == 2)
+                            showWindowStartDialog(rule);
+                        else
+                            showConditionStateDialog(rule, which == 0 ? RuleCondition.STATE_HEADSET
+                                    : RuleCondition.STATE_BLUETOOTH);
+                    }
+                }).create().show();
+    }
+
+    private void showConditionStateDialog(final Rule rule, final int state) {
+        final RuleCondition condition = getCondition(rule);
+        new AlertDialog.Builder(this)
+                .setCancelable(true)
+                .setTitle(state == RuleCondition.STATE_HEADSET ? R.string.headset : R.string.bluetooth)
+                .setSingleChoiceItems(R.array.condition_states, getConditionState(condition, state),
+                        new DialogInterface.OnClickListener() {
+                            @Override
+                            public void onClick(DialogInterface dialogInterface, int which) {
+                                dialogInterface.dismiss();
+                                int required = condition.getRequired() & ~state;
+                                int forbidden = condition.getForbidden() & ~state;
+                                if (which == 1)
+                                    required |= state;
+                                else if (which == 2)
+                                    forbidden |= state;
+                                setCondition(rule, new RuleCondition(required, forbidden,
+                                        condition.getWindowStart(), condition.getWindowEnd()));
+                            }
+                        }).create().show();
+    }
+
+    private void showWindowStartDialog(final Rule rule) {
+        final RuleCondition condition = getCondition(rule);
+        int start = condition.hasWindow() ? condition.getWindowStart() : 22 * 60;
+        TimePickerDialog dialog = new TimePickerDialog(this, new TimePickerDialog.OnTimeSetListener() {
+            @Override
+            public void onTimeSet(TimePicker timePicker, int hourOfDay, int minute) {
+                showWindowEndDialog(rule, hourOfDay * 60 + minute);
+            }
+        }, start / 60, start % 60, android.text.format.DateFormat.is24HourFormat(this));
+        dialog.setButton(DialogInterface.BUTTON_NEUTRAL, getString(R.string.any_time), new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialogInterface, int which) {
+                setCondition(rule, new RuleCondition(condition.getRequired(), condition.getForbidden(), -1, -1));
+            }
+        });
+        dialog.show();
+    }
+
+    private void showWindowEndDialog(final Rule rule, final int windowStart) {
+        final RuleCondition condition = getCondition(rule);
+        int end = condition.hasWindow() ? condition.getWindowEnd() : 7 * 60;
+        new TimePickerDialog(this, new TimePickerDialog.OnTimeSetListener() {
+            @Override
+            public void onTimeSet(TimePicker timePicker, int hourOfDay, int minute) {
+                setCondition(rule, new RuleCondition(condition.getRequired(), condition.getForbidden(),
+                        windowStart, hourOfDay * 60 + minute));
+            }
+        }, end / 60, end % 60, android.text.format.DateFormat.is24HourFormat(this)).show();
+    }
+
+    private static RuleCondition getCondition(Rule rule) {
+        RuleCondition condition = rule.getCondition();
+        return null != condition ? condition : new RuleCondition(0, 0, -1, -1);
+    }
+
+    /**
+     * @return the index into the condition_states array for {@code state}
+     */
+    private static int getConditionState(RuleCondition condition, int state) {
+        if ((condition.getRequired() & state) != 0)
+            return 1;
+        if ((condition.getForbidden() & state) != 0)
+            return 2;
+        return 0;
+    }
+
+    private void setCondition(Rule rule, RuleCondition condition) {
+        rule.setCondition(condition);
+        onRuleChanged(rule.getPackageName());
+    }
+
+    private String formatMinuteOfDay(int minuteOfDay) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.set(Calendar.HOUR_OF_DAY, minuteOfDay / 60);
+        calendar.set(Calendar.MINUTE, minuteOfDay % 60);
+        return android.text.format.DateFormat.getTimeFormat(this).format(calendar.getTime());
+    }
+
+    private void showUsageSelectDialog(final Rule rule) {
+        final String[] usageOptions = getResources().getStringArray(R.array.usage_options);
+        final int[] usageOptionValues = getResources().getIntArray(R.array.usage_option_values);
+        final String[] items = new String[usageOptions.length];
+        for (int i = 0; i < items.length; i++)
+            items[i] = getString(R.string.usage_stream, usageOptions[i],
+                    getStreamName(getUsageStream(rule, usageOptionValues[i])));
+        new AlertDialog.Builder(this)
+                .setCancelable(true)
+                .setTitle(R.string.by_usage)
+                .setItems(items, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialogInterface, int which) {
+                        final int usage = usageOptionValues[which];
+                        newStreamSelectDialog(usageOptions[which], getUsageStream(rule, usage),
+                                new OnStreamSelectedListener() {
+                                    @Override
+                                    public void onStreamSelected(int stream) {
+                                        if (getUsageStream(rule, usage) == stream)
+                                            return;
+                                        rule.setUsageStream(UsageRule.KIND_USAGE, usage, stream);
+                                        onRuleChanged(rule.getPackageName());
+                                    }
+                                }).create().show();
+                    }
+                }).create().show();
+    }
+
+    private AlertDialog.Builder newStreamSelectDialog(CharSequence title, int current,
+                                                      final OnStreamSelectedListener listener) {
         final int[] streamOptionValues = getResources().getIntArray(R.array.stream_option_values);
-        int selection = 0;
+        int selection = -1;
         for (int i = 0; i < streamOptionValues.length; i++) {
-            if (rule.getStream() == streamOptionValues[i]) {
+            if (current == streamOptionValues[i]) {
                 selection = i;
                 break;
             }
         }
-        new AlertDialog.Builder(this)
+        return new AlertDialog.Builder(this)
                 .setCancelable(true)
-                .setTitle(PackageUtils.getLabelForPackage(getPackageManager(), rule.getPackageName()))
+                .setTitle(title)
                 .setSingleChoiceItems(R.array.stream_options, selection, new DialogInterface.OnClickListener() {
                     @Override
                     public void onClick(DialogInterface dialogInterface, int which) {
                         dialogInterface.dismiss();
-                        rule.setStream(streamOptionValues[which]);
-                        persistRules();
-                        mAdapter.notifyDataSetChanged();
+                        listener.onStreamSelected(streamOptionValues[which]);
                     }
-                }).create().show();
+                });
+    }
+
+    private interface OnStreamSelectedListener {
+        void onStreamSelected(int stream);
+    }
+
+    private static int getUsageStream(Rule rule, int usage) {
+        for (UsageRule usageRule : rule.getUsageRules()) {
+            if (usageRule.getKind() == UsageRule.KIND_USAGE && usageRule.getValue() == usage)
+                return usageRule.getStream();
+        }
+        return -1;
+    }
+
+    private String getStreamName(int stream) {
+        String[] streamOptions = getResources().getStringArray(R.array.stream_options);
+        int[] streamOptionValues = getResources().getIntArray(R.array.stream_option_values);
+        for (int i = 0; i < streamOptionValues.length; i++) {
+            if (stream == streamOptionValues[i])
+                return streamOptions[i];
+        }
+        return String.valueOf(stream);
+    }
+
+    private void onRuleChanged(String packageName) {
+        onRuleChanged(Collections.singleton(packageName));
+    }
+
+    private void onRuleChanged(Collection<String> packageNames) {
+        mAdapter.setRules(mRulesList);
+        mRuleStore.commit(packageNames);
+        invalidateOptionsMenu();
+    }
+
+    private boolean isVerboseLogging() {
+        return mPrefs.getInt(Xposed.PREF_LOG_LEVEL, HookLog.DEFAULT_LEVEL) >= HookLog.DEBUG;
     }
 
     private void setLauncherAliasEnabled(boolean enabled) {
@@ -231,87 +698,295 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
                 mode, PackageManager.DONT_KILL_APP);
     }
 
-    private class ApplicationRuleAdapter extends BaseAdapter {
+    private static class RuleRow {
+
+        private final long id;
+        private final String packageName;
+        private final CharSequence label;
+        private final int stream;
+        private final String streamText;
+        private final String hitsText;
+
+        RuleRow(Rule rule, long id, CharSequence label, String streamText, String hitsText) {
+            this.id = id;
+            this.packageName = rule.getPackageName();
+            this.label = label;
+            this.stream = rule.getStream();
+            this.streamText = streamText;
+            this.hitsText = hitsText;
+        }
+
+        boolean hasSameContents(RuleRow other) {
+            return stream == other.stream && TextUtils.equals(label, other.label)
+                    && TextUtils.equals(streamText, other.streamText)
+                    && TextUtils.equals(hitsText, other.hitsText);
+        }
+    }
+
+    private class ApplicationRuleAdapter extends RecyclerView.Adapter<ApplicationRuleAdapter.Holder> {
 
         private final Context context;
         private final PackageManager packageManager;
-        private final String[] streamOptions;
-        private final int[] streamOptionValues;
+        private final IconLoader iconLoader;
+        private final SparseArray<String> streamTexts = new SparseArray<>();
+        private final ExecutorService executor = Executors.newSingleThreadExecutor();
+        private final Handler handler = new Handler(Looper.getMainLooper());
+        // Only touched on the executor
+        private final Map<String, CharSequence> labels = new HashMap<>();
+        private final Map<String, Long> ids = new HashMap<>();
+        private List<RuleRow> rows = Collections.emptyList();
+        private int generation;
+        private final Set<String> selection = new HashSet<>();
 
         public ApplicationRuleAdapter(Context context) {
             this.context = context;
             this.packageManager = context.getPackageManager();
-            this.streamOptions = context.getResources().getStringArray(R.array.stream_options);
-            this.streamOptionValues = context.getResources().getIntArray(R.array.stream_option_values);
+            this.iconLoader = IconLoader.getInstance(context);
+            String[] streamOptions = context.getResources().getStringArray(R.array.stream_options);
+            int[] streamOptionValues = context.getResources().getIntArray(R.array.stream_option_values);
+            for (int i = 0; i < streamOptionValues.length; i++)
+                streamTexts.put(streamOptionValues[i], String.format("Stream: %s", streamOptions[i]));
+            setHasStableIds(true);
         }
 
-        @Override
-        public int getCount() {
-            return null != mRulesList ? mRulesList.size() : 0;
+        /**
+         * Builds rows for {@code rules} and diffs them against the current ones off the main
+         * thread, then applies the result unless a newer call superseded it.
+         */
+        public void setRules(RuleList rules) {
+            final List<Rule> snapshot = null != rules ? rules.toList() : Collections.<Rule>emptyList();
+            final List<RuleRow> oldRows = rows;
+            final int requested = ++generation;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    final List<RuleRow> newRows = buildRows(snapshot);
+                    final DiffUtil.DiffResult diff = DiffUtil.calculateDiff(new RowDiff(oldRows, newRows));
+                    handler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (requested != generation)
+                                return;
+                            rows = newRows;
+                            // Rules deleted meanwhile can't stay selected
+                            boolean pruned = selection.retainAll(keysOf(newRows));
+                            diff.dispatchUpdatesTo(ApplicationRuleAdapter.this);
+                            if (pruned)
+                                onSelectionChanged();
+                        }
+                    });
+                }
+            });
+        }
+
+        public void shutdown() {
+            executor.shutdownNow();
+        }
+
+        public Set<String> getSelection() {
+            return selection;
+        }
+
+        public void toggleSelection(String packageName) {
+            if (!selection.remove(packageName))
+                selection.add(packageName);
+            notifyRowChanged(packageName);
+        }
+
+        public void selectAll() {
+            for (RuleRow row : rows)
+                selection.add(row.packageName);
+            notifyItemRangeChanged(0, rows.size());
+        }
+
+        public void clearSelection() {
+            if (selection.isEmpty())
+                return;
+            selection.clear();
+            notifyItemRangeChanged(0, rows.size());
+        }
+
+        private void notifyRowChanged(String packageName) {
+            for (int i = 0; i < rows.size(); i++) {
+                if (rows.get(i).packageName.equals(packageName)) {
+                    notifyItemChanged(i);
+                    return;
+                }
+            }
+        }
+
+        private Set<String> keysOf(List<RuleRow> rows) {
+            Set<String> keys = new HashSet<>(rows.size() * 2);
+            for (RuleRow row : rows)
+                keys.add(row.packageName);
+            return keys;
+        }
+
+        private List<RuleRow> buildRows(List<Rule> rules) {
+            Map<Rule, TelemetryReceiver.Hits> hits = getHitsByRule(rules);
+            long now = System.currentTimeMillis();
+            List<RuleRow> result = new ArrayList<>(rules.size());
+            for (Rule rule : rules) {
+                String packageName = rule.getPackageName();
+                CharSequence label = labels.get(packageName);
+                if (null == label) {
+                    label = PackageMatcher.isPattern(packageName) ? packageName
+                            : PackageUtils.getLabelForPackage(packageManager, packageName);
+                    labels.put(packageName, label);
+                }
+                Long id = ids.get(packageName);
+                if (null == id) {
+                    id = (long) ids.size();
+                    ids.put(packageName, id);
+                }
+                String streamText = streamTexts.get(rule.getStream());
+                int usageRules = rule.getUsageRules().size();
+                if (usageRules > 0)
+                    streamText = context.getResources().getQuantityString(R.plurals.stream_with_usage_rules,
+                            usageRules, streamText, usageRules);
+                if (null != rule.getCondition())
+                    streamText = context.getString(R.string.stream_conditional, streamText);
+                TelemetryReceiver.Hits ruleHits = hits.get(rule);
+                String hitsText = null;
+                if (null != ruleHits)
+                    hitsText = context.getResources().getQuantityString(R.plurals.rule_hits,
+                            (int) Math.min(ruleHits.count, Integer.MAX_VALUE), ruleHits.count,
+                            DateUtils.formatSameDayTime(ruleHits.lastHit, now, DateFormat.SHORT, DateFormat.SHORT));
+                result.add(new RuleRow(rule, id, label, streamText, hitsText));
+            }
+            return result;
+        }
+
+        /**
+         * Credits each reporting package's hits to the rule that routes it, the way the hooks
+         * resolve rules, so a wildcard rule adds up the packages it matched.
+         */
+        private Map<Rule, TelemetryReceiver.Hits> getHitsByRule(List<Rule> rules) {
+            Map<Rule, TelemetryReceiver.Hits> result = new HashMap<>();
+            RuleSnapshot snapshot = RuleSnapshot.of(rules);
+            for (Map.Entry<String, TelemetryReceiver.Hits> entry : TelemetryReceiver.readHits(context).entrySet()) {
+                Rule rule = snapshot.getRuleForPackage(entry.getKey());
+                if (null == rule)
+                    continue;
+                TelemetryReceiver.Hits total = result.get(rule);
+                if (null == total)
+                    result.put(rule, total = new TelemetryReceiver.Hits());
+                total.count += entry.getValue().count;
+                total.lastHit = Math.max(total.lastHit, entry.getValue().lastHit);
+            }
+            return result;
         }
 
         @Override
-        public Rule getItem(int position) {
-            return mRulesList.get(position);
+        public int getItemCount() {
+            return rows.size();
         }
 
         @Override
         public long getItemId(int position) {
-            return position;
+            return rows.get(position).id;
         }
 
         @Override
-        public View getView(int position, View convertView, ViewGroup parent) {
-            Holder h;
-            if (null == convertView) {
-                convertView = LayoutInflater.from(context).inflate(R.layout.application_rule_list_item, parent, false);
-                h = new Holder(convertView);
-            } else {
-                h = (Holder) convertView.getTag();
+        public Holder onCreateViewHolder(ViewGroup parent, int viewType) {
+            View view = LayoutInflater.from(context).inflate(R.layout.application_rule_list_item, parent, false);
+            return new Holder(view);
+        }
+
+        @Override
+        public void onBindViewHolder(Holder h, int position) {
+            RuleRow row = rows.get(position);
+            h.row = row;
+            h.itemView.setActivated(selection.contains(row.packageName));
+            iconLoader.bind(h.icon, IconLoader.forPackage(row.packageName));
+            h.text1.setText(row.label);
+            h.text2.setText(null != row.hitsText
+                    ? getString(R.string.stream_and_hits, row.streamText, row.hitsText) : row.streamText);
+        }
+
+        private class RowDiff extends DiffUtil.Callback {
+
+            private final List<RuleRow> oldRows;
+            private final List<RuleRow> newRows;
+
+            RowDiff(List<RuleRow> oldRows, List<RuleRow> newRows) {
+                this.oldRows = oldRows;
+                this.newRows = newRows;
             }
-            Rule rule = getItem(position);
-            final String packageName = rule.getPackageName();
-            int stream = rule.getStream();
-            try {
-                ApplicationInfo info = packageManager.getApplicationInfo(packageName, 0);
-                h.icon.setImageDrawable(packageManager.getApplicationIcon(info));
-                h.text1.setText(packageManager.getApplicationLabel(info));
-            } catch (PackageManager.NameNotFoundException e) {
-                Log.d(TAG, "getView: Error loading application icon, " + e.getMessage());
-                h.icon.setImageResource(R.drawable.ic_default_package);
-                h.text1.setText(packageName);
+
+            @Override
+            public int getOldListSize() {
+                return oldRows.size();
             }
-            h.icon.setOnClickListener(new View.OnClickListener() {
-                @Override
-                public void onClick(View view) {
-                    try {
-                        Intent intent = packageManager.getLaunchIntentForPackage(packageName);
-                        context.startActivity(intent);
-                    } catch (ActivityNotFoundException e) {
-                        Log.e(TAG, "getView: Error starting activity for package, " + e.getMessage());
-                    }
-                }
-            });
-            for (int i = 0; i < streamOptionValues.length; i++) {
-                if (streamOptionValues[i] == stream) {
-                    h.text2.setText(String.format("Stream: %s", streamOptions[i]));
-                    break;
-                }
+
+            @Override
+            public int getNewListSize() {
+                return newRows.size();
+            }
+
+            @Override
+            public boolean areItemsTheSame(int oldItemPosition, int newItemPosition) {
+                return oldRows.get(oldItemPosition).id == newRows.get(newItemPosition).id;
+            }
+
+            @Override
+            public boolean areContentsTheSame(int oldItemPosition, int newItemPosition) {
+                return oldRows.get(oldItemPosition).hasSameContents(newRows.get(newItemPosition));
             }
-            return convertView;
         }
 
-        private class Holder {
+        class Holder extends RecyclerView.ViewHolder implements View.OnClickListener, View.OnLongClickListener {
 
             private final ImageView icon;
             private final TextView text1;
             private final TextView text2;
+            private RuleRow row;
 
             public Holder(View view) {
-                view.setTag(this);
+                super(view);
                 icon = (ImageView) view.findViewById(android.R.id.icon);
                 text1 = (TextView) view.findViewById(android.R.id.text1);
                 text2 = (TextView) view.findViewById(android.R.id.text2);
+                view.setOnClickListener(this);
+                view.setOnLongClickListener(this);
+                icon.setOnClickListener(this);
+            }
+
+            @Override
+            public void onClick(View view) {
+                if (null == row)
+                    return;
+                if (null != mActionMode) {
+                    toggleSelection(row.packageName);
+                    onSelectionChanged();
+                } else if (view == icon) {
+                    try {
+                        Intent intent = packageManager.getLaunchIntentForPackage(row.packageName);
+                        if (null != intent)
+                            context.startActivity(intent);
+                    } catch (ActivityNotFoundException e) {
+                        Log.e(TAG, "onClick: Error starting activity for package, " + e.getMessage());
+                    }
+                } else {
+                    // By key: rows only diff by what they show, so undo or an import may have
+                    // replaced the rule this one was built from
+                    Rule rule = mRulesList.get(row.packageName);
+                    if (null != rule)
+                        showStreamSelectDialog(rule);
+                }
+            }
+
+            @Override
+            public boolean onLongClick(View view) {
+                if (null == row)
+                    return false;
+                if (null != mActionMode) {
+                    toggleSelection(row.packageName);
+                    onSelectionChanged();
+                } else {
+                    startSelection(row.packageName);
+                }
+                return true;
             }
         }
     }
@@ -0,0 +1,48 @@
+package xposed.audiorouter;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.AsyncTask;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import xposed.audiorouter.utils.PackageIndex;
+
+/**
+ * Keeps the {@link PackageIndex} and the rules' uid map current as packages are installed,
+ * replaced or removed, and drops the rules of removed packages.
+ */
+public class PackageChangeReceiver extends BroadcastReceiver {
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        Uri data = intent.getData();
+        if (null == data)
+            return;
+        final String packageName = data.getSchemeSpecificPart();
+        final PackageIndex index = PackageIndex.getInstance(context);
+        final PendingResult result = goAsync();
+        final AtomicInteger remaining = new AtomicInteger(2);
+        final Runnable finish = new Runnable() {
+            @Override
+            public void run() {
+                if (remaining.decrementAndGet() == 0)
+                    result.finish();
+            }
+        };
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    index.invalidate(packageName);
+                } finally {
+                    finish.run();
+                }
+            }
+        });
+        boolean removed = Intent.ACTION_PACKAGE_FULLY_REMOVED.equals(intent.getAction());
+        RuleStore.getInstance(context).onPackageChanged(packageName, removed, finish);
+    }
+}
@@ -2,32 +2,37 @@ package xposed.audiorouter;
 
 import android.app.Dialog;
 import android.content.Context;
-import android.content.Intent;
 import android.content.pm.PackageManager;
-import android.content.pm.ResolveInfo;
+import android.database.DataSetObserver;
 import android.os.AsyncTask;
 import android.os.Bundle;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.v4.app.DialogFragment;
 import android.support.v7.app.AlertDialog;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.AdapterView;
 import android.widget.BaseAdapter;
+import android.widget.EditText;
 import android.widget.ImageView;
 import android.widget.ListView;
 import android.widget.TextView;
 
 import java.lang.ref.WeakReference;
-import java.util.Collections;
 import java.util.List;
 
+import xposed.audiorouter.utils.IconLoader;
+import xposed.audiorouter.utils.PackageIndex;
+import xposed.audiorouter.utils.PrefixIndex;
+
 public class PackageSelectDialog extends DialogFragment {
 
     interface OnPackageSelectedListener {
-        void onPackageSelected(ResolveInfo resolveInfo);
+        void onPackageSelected(String packageName);
     }
 
     public static final String TAG = PackageSelectDialog.class.getSimpleName();
@@ -50,20 +55,47 @@ public class PackageSelectDialog extends DialogFragment {
     @Override
     public void onStart() {
         super.onStart();
-        new LoadPackagesTask(mAdapter).execute(getActivity().getPackageManager());
+        new LoadPackagesTask(mAdapter, getActivity().getPackageManager())
+                .execute(PackageIndex.getInstance(getActivity()));
     }
 
     @NonNull
     @Override
     public Dialog onCreateDialog(Bundle savedInstanceState) {
         View view = View.inflate(getActivity(), R.layout.dialog_package_select, null);
-        ListView listView = (ListView) view.findViewById(android.R.id.list);
-        listView.setEmptyView(view.findViewById(android.R.id.empty));
+        final ListView listView = (ListView) view.findViewById(android.R.id.list);
+        final View loadingView = view.findViewById(android.R.id.empty);
+        final View noMatchesView = view.findViewById(R.id.no_matches);
+        listView.setEmptyView(loadingView);
+        mAdapter.registerDataSetObserver(new DataSetObserver() {
+            @Override
+            public void onChanged() {
+                if (mAdapter.isLoaded() && listView.getEmptyView() != noMatchesView) {
+                    loadingView.setVisibility(View.GONE);
+                    listView.setEmptyView(noMatchesView);
+                }
+            }
+        });
+        EditText searchView = (EditText) view.findViewById(R.id.search);
+        searchView.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+                mAdapter.setQuery(s.toString());
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+            }
+        });
         listView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
             @Override
             public void onItemClick(AdapterView<?> adapterView, View view, int position, long l) {
                 if (null != mListener)
-                    mListener.onPackageSelected(mAdapter.getItem(position));
+                    mListener.onPackageSelected(mAdapter.getItem(position).packageName);
             }
         });
         listView.setAdapter(mAdapter);
@@ -83,44 +115,61 @@ public class PackageSelectDialog extends DialogFragment {
         mListener = onPackageSelectedListener;
     }
 
-    class LoadPackagesTask extends AsyncTask<PackageManager, Void, List<ResolveInfo>> {
+    static class LoadPackagesTask extends AsyncTask<PackageIndex, PrefixIndex<PackageIndex.Entry>, PrefixIndex<PackageIndex.Entry>> {
+
+        private static final PrefixIndex.Tokenizer<PackageIndex.Entry> TOKENIZER = new PrefixIndex.Tokenizer<PackageIndex.Entry>() {
+            @Override
+            public String[] getStrings(PackageIndex.Entry entry) {
+                return new String[]{entry.label, entry.packageName};
+            }
+        };
 
         private final WeakReference<PackageAdapter> mRef;
+        private final PackageManager mPackageManager;
 
-        public LoadPackagesTask(PackageAdapter packageAdapter) {
+        public LoadPackagesTask(PackageAdapter packageAdapter, PackageManager packageManager) {
             mRef = new WeakReference<>(packageAdapter);
+            mPackageManager = packageManager;
         }
 
+        @SuppressWarnings("unchecked")
         @Override
-        protected List<ResolveInfo> doInBackground(PackageManager... params) {
-            return loadPackages(params[0]);
+        protected PrefixIndex<PackageIndex.Entry> doInBackground(PackageIndex... params) {
+            PackageIndex index = params[0];
+            List<PackageIndex.Entry> indexed = index.getEntries();
+            if (!indexed.isEmpty())
+                publishProgress(new PrefixIndex<>(indexed, TOKENIZER));
+            return new PrefixIndex<>(index.refresh(mPackageManager), TOKENIZER);
         }
 
         @Override
-        protected void onPostExecute(List<ResolveInfo> resolveInfos) {
-            PackageAdapter adapter = mRef.get();
-            if (null != adapter)
-                adapter.setPackages(resolveInfos);
+        protected void onProgressUpdate(PrefixIndex<PackageIndex.Entry>... values) {
+            setPackages(values[0]);
+        }
+
+        @Override
+        protected void onPostExecute(PrefixIndex<PackageIndex.Entry> packages) {
+            setPackages(packages);
         }
 
-        private List<ResolveInfo> loadPackages(PackageManager packageManager) {
-            Intent intent = new Intent(Intent.ACTION_MAIN);
-            intent.addCategory(Intent.CATEGORY_LAUNCHER);
-            List<ResolveInfo> packages = packageManager.queryIntentActivities(intent, 0);
-            Collections.sort(packages, new ResolveInfo.DisplayNameComparator(packageManager));
-            return packages;
+        private void setPackages(PrefixIndex<PackageIndex.Entry> packages) {
+            PackageAdapter adapter = mRef.get();
+            if (null != adapter)
+                adapter.setPackages(packages);
         }
     }
 
     private class PackageAdapter extends BaseAdapter {
 
         private final Context context;
-        private final PackageManager packageManager;
-        private List<ResolveInfo> packages;
+        private final IconLoader iconLoader;
+        private PrefixIndex<PackageIndex.Entry> searchIndex;
+        private String query = "";
+        private List<PackageIndex.Entry> packages;
 
         public PackageAdapter(Context context) {
             this.context = context;
-            this.packageManager = context.getPackageManager();
+            this.iconLoader = IconLoader.getInstance(context);
         }
 
         @Override
@@ -129,7 +178,7 @@ public class PackageSelectDialog extends DialogFragment {
         }
 
         @Override
-        public ResolveInfo getItem(int position) {
+        public PackageIndex.Entry getItem(int position) {
             return packages.get(position);
         }
 
@@ -147,18 +196,31 @@ public class PackageSelectDialog extends DialogFragment {
             } else {
                 h = (Holder) convertView.getTag();
             }
-            ResolveInfo info = getItem(position);
-            h.icon.setImageDrawable(info.loadIcon(packageManager));
-            h.text1.setText(info.loadLabel(packageManager));
-            h.text2.setText(info.activityInfo.packageName);
+            PackageIndex.Entry entry = getItem(position);
+            iconLoader.bind(h.icon, entry);
+            h.text1.setText(entry.label);
+            h.text2.setText(entry.packageName);
             return convertView;
         }
 
-        public void setPackages(List<ResolveInfo> packages) {
-            this.packages = packages;
+        public void setPackages(PrefixIndex<PackageIndex.Entry> searchIndex) {
+            this.searchIndex = searchIndex;
+            this.packages = searchIndex.query(query);
             notifyDataSetChanged();
         }
 
+        public void setQuery(String query) {
+            this.query = query;
+            if (null != searchIndex) {
+                packages = searchIndex.query(query);
+                notifyDataSetChanged();
+            }
+        }
+
+        public boolean isLoaded() {
+            return null != searchIndex;
+        }
+
         private class Holder {
 
             private final ImageView icon;
@@ -0,0 +1,179 @@
+package xposed.audiorouter;
+
+import android.app.Dialog;
+import android.content.Context;
+import android.os.Bundle;
+import android.support.annotation.NonNull;
+import android.support.v4.app.DialogFragment;
+import android.support.v7.app.AlertDialog;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.util.SparseArray;
+import android.util.SparseIntArray;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.ImageView;
+import android.widget.TextView;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import xposed.audiorouter.rules.RuleList;
+import xposed.audiorouter.utils.IconLoader;
+
+/**
+ * Runs a {@link CoveragePreview} of the current rules and lists the rerouted packages as they
+ * come in, under a per stream summary.
+ */
+public class PreviewDialog extends DialogFragment {
+
+    public static final String TAG = PreviewDialog.class.getSimpleName();
+
+    private final SparseIntArray mCounts = new SparseIntArray();
+    private final SparseArray<String> mStreamNames = new SparseArray<>();
+    private CoveragePreview mPreview;
+    private ResultAdapter mAdapter;
+    private TextView mText;
+
+    private final RuleStore.OnRulesLoadedListener mRulesListener = new RuleStore.OnRulesLoadedListener() {
+        @Override
+        public void onRulesLoaded(RuleList rules) {
+            mPreview = new CoveragePreview(getActivity(), RuleStore.getInstance(getActivity()).copyRules(),
+                    mPreviewListener);
+            mPreview.start();
+        }
+    };
+
+    private final CoveragePreview.Listener mPreviewListener = new CoveragePreview.Listener() {
+        @Override
+        public void onResults(List<CoveragePreview.Result> results, int evaluated, int total) {
+            for (CoveragePreview.Result result : results)
+                mCounts.put(result.stream, mCounts.get(result.stream) + 1);
+            mAdapter.add(results);
+            mText.setText(getString(R.string.preview_progress, evaluated, total, mAdapter.getItemCount()));
+        }
+
+        @Override
+        public void onFinished(int total, long elapsedMillis) {
+            StringBuilder sb = new StringBuilder(
+                    getString(R.string.preview_summary, mAdapter.getItemCount(), total, elapsedMillis));
+            for (int i = 0; i < mCounts.size(); i++)
+                sb.append('\n').append("  ").append(streamName(mCounts.keyAt(i))).append(": ").append(mCounts.valueAt(i));
+            mText.setText(sb);
+        }
+    };
+
+    public static PreviewDialog newInstance() {
+        return new PreviewDialog();
+    }
+
+    @Override
+    public void onStart() {
+        super.onStart();
+        mCounts.clear();
+        mAdapter.clear();
+        mText.setText(null);
+        RuleStore.getInstance(getActivity()).load(mRulesListener);
+    }
+
+    @Override
+    public void onStop() {
+        super.onStop();
+        RuleStore.getInstance(getActivity()).removeListener(mRulesListener);
+        if (null != mPreview) {
+            mPreview.cancel();
+            mPreview = null;
+        }
+    }
+
+    @NonNull
+    @Override
+    public Dialog onCreateDialog(Bundle savedInstanceState) {
+        String[] streamOptions = getResources().getStringArray(R.array.stream_options);
+        int[] streamOptionValues = getResources().getIntArray(R.array.stream_option_values);
+        for (int i = 0; i < streamOptionValues.length; i++)
+            mStreamNames.put(streamOptionValues[i], streamOptions[i]);
+
+        View view = View.inflate(getActivity(), R.layout.dialog_preview, null);
+        mText = (TextView) view.findViewById(android.R.id.text1);
+        RecyclerView list = (RecyclerView) view.findViewById(android.R.id.list);
+        list.setLayoutManager(new LinearLayoutManager(getActivity()));
+        mAdapter = new ResultAdapter(getActivity());
+        list.setAdapter(mAdapter);
+
+        AlertDialog dialog = new AlertDialog.Builder(getActivity())
+                .setCancelable(true)
+                .setTitle(R.string.preview_routing)
+                .setView(view)
+                .create();
+        dialog.setCanceledOnTouchOutside(true);
+        return dialog;
+    }
+
+    private String streamName(int stream) {
+        String name = mStreamNames.get(stream);
+        return null != name ? name : String.valueOf(stream);
+    }
+
+    private class ResultAdapter extends RecyclerView.Adapter<ResultAdapter.Holder> {
+
+        private final Context context;
+        private final IconLoader iconLoader;
+        private final List<CoveragePreview.Result> results = new ArrayList<>();
+
+        ResultAdapter(Context context) {
+            this.context = context;
+            this.iconLoader = IconLoader.getInstance(context);
+        }
+
+        void add(List<CoveragePreview.Result> added) {
+            int start = results.size();
+            results.addAll(added);
+            notifyItemRangeInserted(start, added.size());
+        }
+
+        void clear() {
+            results.clear();
+            notifyDataSetChanged();
+        }
+
+        @Override
+        public int getItemCount() {
+            return results.size();
+        }
+
+        @Override
+        public Holder onCreateViewHolder(ViewGroup parent, int viewType) {
+            View view = LayoutInflater.from(context).inflate(R.layout.application_rule_list_item, parent, false);
+            return new Holder(view);
+        }
+
+        @Override
+        public void onBindViewHolder(Holder h, int position) {
+            CoveragePreview.Result result = results.get(position);
+            iconLoader.bind(h.icon, IconLoader.forPackage(result.packageName));
+            h.text1.setText(result.label);
+            String streamText = "Stream: " + streamName(result.stream);
+            if (result.byUsage)
+                streamText = getString(R.string.preview_by_usage, streamText);
+            if (result.conditional)
+                streamText = getString(R.string.stream_conditional, streamText);
+            h.text2.setText(getString(R.string.stream_and_hits, streamText, result.entries));
+        }
+
+        class Holder extends RecyclerView.ViewHolder {
+
+            final ImageView icon;
+            final TextView text1;
+            final TextView text2;
+
+            Holder(View itemView) {
+                super(itemView);
+                icon = (ImageView) itemView.findViewById(android.R.id.icon);
+                text1 = (TextView) itemView.findViewById(android.R.id.text1);
+                text2 = (TextView) itemView.findViewById(android.R.id.text2);
+            }
+        }
+    }
+}
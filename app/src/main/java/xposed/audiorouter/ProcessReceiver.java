@@ -0,0 +1,72 @@
+package xposed.audiorouter;
+
+import android.app.Application;
+import android.app.Instrumentation;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+
+import de.robv.android.xposed.XC_MethodHook;
+
+import static de.robv.android.xposed.XposedHelpers.findAndHookMethod;
+
+/**
+ * Receives requests from the module app inside a hooked process. Registered once the process's
+ * Application has been created, as that is the first Context it can use, and only for senders
+ * holding {@link #PERMISSION}, which only the module app does.
+ */
+final class ProcessReceiver extends BroadcastReceiver {
+
+    static final String ACTION_REQUEST_STATS = "xposed.audiorouter.action.REQUEST_STATS";
+    static final String ACTION_STATS = "xposed.audiorouter.action.STATS";
+    static final String ACTION_RULES_CHANGED = "xposed.audiorouter.action.RULES_CHANGED";
+    static final String EXTRA_GENERATION = "generation";
+    static final String PERMISSION = "xposed.audiorouter.permission.CONTROL_HOOKS";
+
+    private final String packageName;
+
+    private ProcessReceiver(String packageName) {
+        this.packageName = packageName;
+    }
+
+    static void install(final String packageName) {
+        findAndHookMethod(Instrumentation.class, "callApplicationOnCreate", Application.class, new XC_MethodHook() {
+            private boolean registered;
+
+            @Override
+            protected void afterHookedMethod(MethodHookParam param) throws Throwable {
+                if (registered)
+                    return;
+                registered = true;
+                IntentFilter filter = new IntentFilter(ACTION_REQUEST_STATS);
+                filter.addAction(ACTION_RULES_CHANGED);
+                filter.addAction(RuleTelemetry.ACTION_FLUSH_TELEMETRY);
+                Application application = (Application) param.args[0];
+                application.registerReceiver(new ProcessReceiver(packageName), filter, PERMISSION, null);
+                RuleTelemetry.install(application, packageName);
+                DeviceState.install(application);
+                Xposed.checkRulesGeneration();
+            }
+        });
+    }
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        // Runs in the host app, which must never see our failures
+        try {
+            if (ACTION_RULES_CHANGED.equals(intent.getAction())) {
+                Xposed.onRulesChanged(intent.getLongExtra(EXTRA_GENERATION, 0));
+            } else if (ACTION_REQUEST_STATS.equals(intent.getAction())) {
+                Intent reply = new Intent(ACTION_STATS)
+                        .setPackage(BuildConfig.APPLICATION_ID)
+                        .putExtras(HookStats.toBundle(packageName));
+                context.sendBroadcast(SenderIdentity.stamp(context, reply));
+            } else if (RuleTelemetry.ACTION_FLUSH_TELEMETRY.equals(intent.getAction())) {
+                RuleTelemetry.flush();
+            }
+        } catch (Throwable t) {
+            HookLog.e("Error handling " + intent.getAction() + ", " + t.getMessage());
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package xposed.audiorouter;
+
+import android.media.AudioAttributes;
+
+import xposed.audiorouter.rules.RoutingTable;
+import xposed.audiorouter.rules.RuleCondition;
+import xposed.audiorouter.rules.RuleLookup;
+
+/**
+ * What the hooks should do in this process, precomputed once per rules change so every hooked
+ * entry point can apply it without further lookups.
+ */
+public final class RoutingDecision {
+
+    public static final RoutingDecision NONE = new RoutingDecision(null, null);
+
+    final RuleLookup rules;
+    final RoutingTable table;
+    /** The package's default stream, or -1. */
+    final int stream;
+    /** Whether every kind of sound goes to {@link #stream}, so hooks need not look at usages. */
+    final boolean uniform;
+    private final boolean routed;
+    private final RuleCondition condition;
+    private final int requiredMask;
+    private final int forbiddenMask;
+    private final AudioAttributes[] attributes;
+
+    RoutingDecision(RuleLookup rules, RoutingTable table) {
+        this.rules = rules;
+        this.table = table;
+        this.stream = null != table ? table.getDefaultStream() : -1;
+        this.uniform = null == table || table.isUniform();
+        this.routed = null != table && table.routesAnything();
+        this.condition = null != table ? table.getCondition() : null;
+        this.requiredMask = null != condition ? DeviceState.requiredMask(condition) : 0;
+        this.forbiddenMask = null != condition ? condition.getForbidden() : 0;
+        int maxStream = null != table ? table.maxStream() : -1;
+        attributes = new AudioAttributes[maxStream + 1];
+        for (int i = 0; i < attributes.length; i++)
+            attributes[i] = new AudioAttributes.Builder().setLegacyStreamType(i).build();
+    }
+
+    /**
+     * @return whether the package has rules and the device state satisfies their condition
+     */
+    public boolean isRouted() {
+        if (null == condition)
+            return routed;
+        int state = DeviceState.get();
+        return routed && (state & requiredMask) == requiredMask && (state & forbiddenMask) == 0;
+    }
+
+    /**
+     * @return the condition the rules apply under, or null if they always do
+     */
+    RuleCondition getCondition() {
+        return condition;
+    }
+
+    int forAttributes(int usage, int contentType) {
+        return uniform ? stream : table.forAttributes(usage, contentType);
+    }
+
+    int forAttributes(AudioAttributes attributes) {
+        if (uniform || null == attributes)
+            return stream;
+        return table.forAttributes(attributes.getUsage(), attributes.getContentType());
+    }
+
+    int forLegacyStream(int legacyStream) {
+        return uniform ? stream : table.forLegacyStream(legacyStream);
+    }
+
+    /**
+     * @return prebuilt attributes routing to {@code stream}, which must be one this decision
+     * routes to
+     */
+    AudioAttributes attributesFor(int stream) {
+        return attributes[stream];
+    }
+}
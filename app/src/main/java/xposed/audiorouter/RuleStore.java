@@ -0,0 +1,569 @@
+package xposed.audiorouter;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.content.pm.ApplicationInfo;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.google.gson.JsonParseException;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import xposed.audiorouter.rules.Rule;
+import xposed.audiorouter.rules.RuleFile;
+import xposed.audiorouter.rules.RuleJournal;
+import xposed.audiorouter.rules.RuleList;
+import xposed.audiorouter.rules.RuleSets;
+import xposed.audiorouter.rules.RuleSnapshot;
+import xposed.audiorouter.rules.Rules;
+
+/**
+ * Process wide owner of the rule list. Reading and writing happen on one background thread.
+ * Committed edits go to a {@link RuleJournal} right away, one record per changed rule, and can be
+ * undone; the rule file the hooks read is republished once after a short quiet period or when
+ * {@link #flush()} is called. Everything except the worker runs on the main thread.
+ */
+public class RuleStore {
+
+    private static final String TAG = RuleStore.class.getSimpleName();
+    private static final long WRITE_DELAY_MS = 500;
+    private static final long COMPACT_THRESHOLD = 64 * 1024;
+    private static final int MAX_UNDO = 50;
+
+    public interface OnRulesLoadedListener {
+        void onRulesLoaded(RuleList rules);
+    }
+
+    public interface OnTransferListener {
+        void onImported(RuleSets.Report report);
+
+        void onExported(int count, long elapsedMillis);
+
+        void onTransferFailed(String message);
+    }
+
+    private static RuleStore sInstance;
+
+    private final Context context;
+    private final SharedPreferences prefs;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final RuleJournal journal;
+    private final ArrayDeque<List<Edit>> undo = new ArrayDeque<>();
+    private final List<OnRulesLoadedListener> pending = new ArrayList<>();
+    private final Runnable writeRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+    private final Runnable compactRunnable = new Runnable() {
+        @Override
+        public void run() {
+            compact();
+        }
+    };
+    // Only touched on the main thread
+    private RuleList rules;
+    // Copies of the rules as committed, to tell what an edit changed and what undoing it restores
+    private RuleList saved;
+    // Why the saved rules couldn't be read; nothing is written while it is set
+    private String loadError;
+    private boolean loading;
+    private boolean dirty;
+    // Only touched on the worker
+    private boolean compacting;
+
+    @SuppressWarnings("deprecation")
+    private RuleStore(Context context) {
+        this.context = context;
+        this.prefs = context.getSharedPreferences(Xposed.PREFERENCES, Context.MODE_WORLD_READABLE);
+        this.journal = new RuleJournal(context.getFilesDir());
+    }
+
+    public static synchronized RuleStore getInstance(Context context) {
+        if (null == sInstance)
+            sInstance = new RuleStore(context.getApplicationContext());
+        return sInstance;
+    }
+
+    /**
+     * Delivers the live rule list to {@code listener}, immediately when it is already in memory and
+     * otherwise once the background parse finishes.
+     */
+    public void load(OnRulesLoadedListener listener) {
+        if (null != rules) {
+            listener.onRulesLoaded(rules);
+            return;
+        }
+        pending.add(listener);
+        if (loading)
+            return;
+        loading = true;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                RuleList read;
+                String error = null;
+                try {
+                    read = readRules();
+                } catch (IOException | JsonParseException e) {
+                    // A corrupt legacy preference too, so the load still finishes
+                    Log.e(TAG, "load: Error reading rules, " + e.getMessage());
+                    read = new RuleList();
+                    error = e.getMessage();
+                }
+                final RuleList loaded = read;
+                final RuleList copies = new RuleList(copyRules(loaded));
+                final String readError = error;
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        loading = false;
+                        rules = loaded;
+                        saved = copies;
+                        loadError = readError;
+                        List<OnRulesLoadedListener> listeners = new ArrayList<>(pending);
+                        pending.clear();
+                        for (OnRulesLoadedListener l : listeners)
+                            l.onRulesLoaded(loaded);
+                    }
+                });
+            }
+        });
+    }
+
+    public void removeListener(OnRulesLoadedListener listener) {
+        pending.remove(listener);
+    }
+
+    /**
+     * @return why the saved rules couldn't be read, or null if they could. While they can't, the
+     * live list starts out empty and edits stay in memory, so they can't overwrite the saved rules
+     */
+    public String getLoadError() {
+        return loadError;
+    }
+
+    /**
+     * Gives up on the unreadable saved rules, replacing them with the live list.
+     */
+    public void discardUnreadableRules() {
+        if (null == loadError)
+            return;
+        loadError = null;
+        compact();
+        markDirty();
+    }
+
+    /**
+     * Journals the live rules for {@code packageNames} as they are now, or as removed where the
+     * list has none, and schedules republishing. Together they make one step of {@link #undo()}.
+     */
+    public void commit(Collection<String> packageNames) {
+        List<Edit> edits = journal(packageNames);
+        if (edits.isEmpty())
+            return;
+        undo.push(edits);
+        if (undo.size() > MAX_UNDO)
+            undo.removeLast();
+        markDirty();
+    }
+
+    /**
+     * Like {@link #commit(Collection)} for every rule, for edits that may have touched any of them.
+     */
+    public void commitAll() {
+        Set<String> packageNames = new LinkedHashSet<>();
+        for (Rule rule : saved)
+            packageNames.add(rule.getPackageName());
+        for (Rule rule : rules)
+            packageNames.add(rule.getPackageName());
+        commit(packageNames);
+    }
+
+    public boolean canUndo() {
+        return !undo.isEmpty();
+    }
+
+    /**
+     * Reverts the live list to before the last committed edit. Rules the edit removed come back at
+     * the end of the list.
+     *
+     * @return whether there was an edit to revert
+     */
+    public boolean undo() {
+        List<Edit> edits = undo.poll();
+        if (null == edits)
+            return false;
+        List<String> packageNames = new ArrayList<>(edits.size());
+        for (Edit edit : edits) {
+            if (null != edit.before)
+                rules.put(copy(edit.before));
+            else
+                rules.remove(edit.packageName);
+            packageNames.add(edit.packageName);
+        }
+        if (!journal(packageNames).isEmpty())
+            markDirty();
+        return true;
+    }
+
+    /**
+     * Takes note of each of {@code packageNames} whose live rule differs from the saved one and
+     * has the worker append records for them, compacting the journal once it has grown past the
+     * threshold. Only copying and comparing happen here, encoding and writing on the worker.
+     *
+     * @return the changes made, with the rules as they were before
+     */
+    private List<Edit> journal(Collection<String> packageNames) {
+        final List<Edit> edits = new ArrayList<>();
+        for (String packageName : packageNames) {
+            Rule before = saved.get(packageName);
+            Rule current = rules.get(packageName);
+            if (null != before ? null != current && Rules.sameRule(before, current) : null == current)
+                continue;
+            Rule after = null != current ? copy(current) : null;
+            if (null != after)
+                saved.put(after);
+            else
+                saved.remove(packageName);
+            edits.add(new Edit(packageName, before, after));
+        }
+        if (edits.isEmpty() || null != loadError)
+            return edits;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                // Saved rules are never changed, only replaced, so the worker can read them
+                List<String> records = new ArrayList<>(edits.size());
+                for (Edit edit : edits)
+                    records.add(RuleJournal.encode(edit.packageName, edit.after));
+                try {
+                    journal.append(records);
+                } catch (IOException e) {
+                    Log.e(TAG, "journal: Error appending to rule journal, " + e.getMessage());
+                }
+                if (!compacting && journal.length() > COMPACT_THRESHOLD) {
+                    compacting = true;
+                    handler.post(compactRunnable);
+                }
+            }
+        });
+        return edits;
+    }
+
+    /**
+     * Has the worker write the saved rules as the journal snapshot, after any records queued so
+     * far.
+     */
+    private void compact() {
+        final List<Rule> snapshot = saved.toList();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    journal.compact(snapshot);
+                } catch (IOException e) {
+                    Log.e(TAG, "compact: Error compacting rule journal, " + e.getMessage());
+                }
+                compacting = false;
+            }
+        });
+    }
+
+    /**
+     * Records that the live list changed and schedules a write, restarting the quiet period.
+     */
+    private void markDirty() {
+        dirty = true;
+        handler.removeCallbacks(writeRunnable);
+        handler.postDelayed(writeRunnable, WRITE_DELAY_MS);
+    }
+
+    /**
+     * Writes the list now if it changed since the last write.
+     */
+    public void flush() {
+        flush(null);
+    }
+
+    private void flush(final Runnable done) {
+        handler.removeCallbacks(writeRunnable);
+        if (!dirty || null == saved || null != loadError) {
+            if (null != done)
+                done.run();
+            return;
+        }
+        dirty = false;
+        final List<Rule> snapshot = saved.toList();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                write(snapshot);
+                if (null != done)
+                    handler.post(done);
+            }
+        });
+    }
+
+    /**
+     * Republishes the rules if {@code packageName} has a rule, so the uid map follows installs
+     * and updates, and drops its own rule if it was uninstalled. {@code done} runs on the main
+     * thread once anything needed has been written.
+     */
+    public void onPackageChanged(final String packageName, final boolean removed, final Runnable done) {
+        load(new OnRulesLoadedListener() {
+            @Override
+            public void onRulesLoaded(RuleList loaded) {
+                if (null != RuleSnapshot.of(loaded.toList()).getRuleForPackage(packageName))
+                    dirty = true;
+                if (removed && null != loaded.remove(packageName))
+                    journal(Collections.singleton(packageName));
+                flush(done);
+            }
+        });
+    }
+
+    /**
+     * Reads the rule set at {@code uri} on the worker and applies it to the live list, replacing
+     * the list entirely when {@code replace} is set and otherwise merging it in by package.
+     */
+    public void importRules(final Uri uri, final boolean replace, final OnTransferListener listener) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final List<Rule> imported = new ArrayList<>();
+                final RuleSets.Report report;
+                Reader in = null;
+                try {
+                    InputStream stream = context.getContentResolver().openInputStream(uri);
+                    if (null == stream)
+                        throw new IOException("No content for " + uri);
+                    in = new BufferedReader(new InputStreamReader(stream, "UTF-8"));
+                    report = RuleSets.read(in, new RuleSets.RuleSink() {
+                        @Override
+                        public void onRule(Rule rule) {
+                            imported.add(rule);
+                        }
+                    });
+                } catch (IOException | SecurityException e) {
+                    Log.e(TAG, "importRules: Error reading rule set, " + e.getMessage());
+                    postFailure(listener, e.getMessage());
+                    return;
+                } finally {
+                    closeQuietly(in);
+                }
+                Log.i(TAG, "importRules: Read " + report.getAccepted() + " of " + report.getRead()
+                        + " rules in " + report.getElapsedMillis() + " ms");
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        load(new OnRulesLoadedListener() {
+                            @Override
+                            public void onRulesLoaded(RuleList loaded) {
+                                // Listeners hold on to the live list, so it changes in place
+                                loaded.replaceAll(RuleSets.merge(loaded.toList(), imported, replace));
+                                commitAll();
+                                listener.onImported(report);
+                            }
+                        });
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Writes the live list to {@code uri} as a rule set on the worker.
+     */
+    public void exportRules(final Uri uri, final OnTransferListener listener) {
+        final List<Rule> snapshot = null != rules ? copyRules() : new ArrayList<Rule>();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+                Writer out = null;
+                final int count;
+                try {
+                    OutputStream stream = context.getContentResolver().openOutputStream(uri);
+                    if (null == stream)
+                        throw new IOException("No content for " + uri);
+                    out = new BufferedWriter(new OutputStreamWriter(stream, "UTF-8"));
+                    count = RuleSets.write(out, snapshot);
+                    out.close();
+                    out = null;
+                } catch (IOException | SecurityException e) {
+                    Log.e(TAG, "exportRules: Error writing rule set, " + e.getMessage());
+                    postFailure(listener, e.getMessage());
+                    return;
+                } finally {
+                    closeQuietly(out);
+                }
+                final long elapsedMillis = (System.nanoTime() - start) / 1000000;
+                Log.i(TAG, "exportRules: Wrote " + count + " rules in " + elapsedMillis + " ms");
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onExported(count, elapsedMillis);
+                    }
+                });
+            }
+        });
+    }
+
+    private void postFailure(final OnTransferListener listener, final String message) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                listener.onTransferFailed(message);
+            }
+        });
+    }
+
+    List<Rule> copyRules() {
+        return copyRules(rules);
+    }
+
+    private static List<Rule> copyRules(RuleList rules) {
+        // Rules are mutated on the main thread, so the worker gets its own copies
+        List<Rule> snapshot = new ArrayList<>(rules.size());
+        for (Rule rule : rules)
+            snapshot.add(copy(rule));
+        return snapshot;
+    }
+
+    private static Rule copy(Rule rule) {
+        Rule copy = new Rule(rule.getPackageName());
+        copy.setStream(rule.getStream());
+        copy.setUsageRules(rule.getUsageRules());
+        copy.setCondition(rule.getCondition());
+        return copy;
+    }
+
+    /**
+     * Replays the journal, or on first run moves rules saved under the "rules" preference into it.
+     * Runs on the worker.
+     *
+     * @throws JsonParseException if the preference holds no valid rules list
+     */
+    private RuleList readRules() throws IOException {
+        if (journal.exists())
+            return journal.read();
+        // Saved lists may hold duplicates, which the keyed list drops
+        RuleList rules = new RuleList(Rules.fromJson(prefs.getString(Xposed.PREF_RULES, "")));
+        if (!prefs.contains(Xposed.PREF_RULES))
+            return rules;
+        try {
+            journal.compact(rules.toList());
+        } catch (IOException e) {
+            Log.e(TAG, "readRules: Error moving rules to the journal, " + e.getMessage());
+            return rules;
+        }
+        prefs.edit().remove(Xposed.PREF_RULES).commit();
+        // Republished so no hook falls back to the preference that is gone now
+        write(rules.toList());
+        return rules;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (null != closeable) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Maps the uid of every installed app a rule applies to onto that rule. Packages sharing a
+     * uid run in the same processes, so such a uid goes to whichever of their rules comes first.
+     */
+    static Map<Integer, String> resolveUids(List<Rule> snapshot, List<ApplicationInfo> applications) {
+        Map<Integer, String> result = new HashMap<>();
+        if (snapshot.isEmpty())
+            return result;
+        RuleSnapshot lookup = RuleSnapshot.of(snapshot);
+        Map<Rule, Integer> positions = new IdentityHashMap<>();
+        for (int i = 0; i < snapshot.size(); i++)
+            positions.put(snapshot.get(i), i);
+        Map<Integer, Integer> first = new HashMap<>();
+        for (ApplicationInfo info : applications) {
+            Rule rule = lookup.getRuleForPackage(info.packageName);
+            if (null == rule)
+                continue;
+            int position = positions.get(rule);
+            Integer current = first.get(info.uid);
+            if (null == current || position < current)
+                first.put(info.uid, position);
+        }
+        for (Map.Entry<Integer, Integer> entry : first.entrySet())
+            result.put(entry.getKey(), snapshot.get(entry.getValue()).getPackageName());
+        return result;
+    }
+
+    private void write(List<Rule> snapshot) {
+        // The file goes first: a process that reads the new generation must map the new file,
+        // while one that maps it under the old generation just reloads it on the broadcast
+        File file = new File(context.getFilesDir(), RuleFile.FILE_NAME);
+        try {
+            RuleFile.write(file, snapshot,
+                    resolveUids(snapshot, context.getPackageManager().getInstalledApplications(0)));
+            file.setReadable(true, false);
+            context.getFilesDir().setExecutable(true, false);
+        } catch (IOException e) {
+            Log.e(TAG, "write: Error writing rule file, " + e.getMessage());
+            return;
+        }
+        long generation = prefs.getLong(Xposed.PREF_RULES_GENERATION, 0) + 1;
+        boolean committed = prefs.edit()
+                .putLong(Xposed.PREF_RULES_GENERATION, generation)
+                .commit();
+        if (!committed) {
+            Log.e(TAG, "write: Error committing rules generation");
+            return;
+        }
+        context.sendBroadcast(new Intent(ProcessReceiver.ACTION_RULES_CHANGED)
+                .putExtra(ProcessReceiver.EXTRA_GENERATION, generation));
+    }
+
+    private static final class Edit {
+
+        private final String packageName;
+        // Saved copies from before and after the edit, null where there was no rule
+        private final Rule before;
+        private final Rule after;
+
+        Edit(String packageName, Rule before, Rule after) {
+            this.packageName = packageName;
+            this.before = before;
+            this.after = after;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package xposed.audiorouter;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Reports how often the hooks of this process routed a call back to the module app. The hook path
+ * only bumps the {@link HookStats} counters; the first hit after a report arms a single delayed
+ * flush on the main thread, which sends what was counted since the last one. An idle process never
+ * wakes up, and a busy one sends at most one broadcast per {@link #FLUSH_INTERVAL_MS}.
+ */
+final class RuleTelemetry {
+
+    static final String ACTION_TELEMETRY = "xposed.audiorouter.action.TELEMETRY";
+    static final String ACTION_FLUSH_TELEMETRY = "xposed.audiorouter.action.FLUSH_TELEMETRY";
+    static final String EXTRA_PACKAGE = "package";
+    static final String EXTRA_HOOKS = "hooks";
+    static final String EXTRA_HITS = "hits";
+    static final String EXTRA_LAST_HIT = "last_hit";
+
+    private static final long FLUSH_INTERVAL_MS = 60000;
+
+    private static final AtomicBoolean mArmed = new AtomicBoolean();
+    private static final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+    private static volatile Handler mHandler;
+    private static Context mContext;
+    private static String mPackageName;
+    // Only touched on the main thread
+    private static final long[] mReported = new long[HookStats.MAX_HOOKS];
+
+    private RuleTelemetry() {
+    }
+
+    /**
+     * Starts reporting, with hits counted before the process had a Context included.
+     */
+    static void install(Context context, String packageName) {
+        mContext = context.getApplicationContext();
+        mPackageName = packageName;
+        mHandler = new Handler(Looper.getMainLooper());
+        mArmed.set(false);
+        onHit();
+    }
+
+    static void onHit() {
+        Handler handler = mHandler;
+        if (null != handler && !mArmed.get() && mArmed.compareAndSet(false, true))
+            handler.postDelayed(mFlush, FLUSH_INTERVAL_MS);
+    }
+
+    /**
+     * Sends the hits counted since the last report, if any. Main thread only.
+     */
+    static void flush() {
+        // Runs in the host app, which must never see our failures
+        try {
+            report();
+        } catch (Throwable t) {
+            HookLog.e("Error reporting telemetry, " + t.getMessage());
+        }
+    }
+
+    private static void report() {
+        if (null == mContext)
+            return;
+        mHandler.removeCallbacks(mFlush);
+        // Disarm first, a hit racing with the report then arms the next one
+        mArmed.set(false);
+        int count = HookStats.getHookCount();
+        String[] hooks = new String[count];
+        long[] hits = new long[count];
+        long total = 0;
+        long lastHitNanos = 0;
+        for (int i = 0; i < count; i++) {
+            long current = HookStats.getHits(i);
+            hooks[i] = HookStats.getHookName(i);
+            hits[i] = current - mReported[i];
+            mReported[i] = current;
+            total += hits[i];
+            long nanos = HookStats.getLastHitNanos(i);
+            if (nanos != 0 && (lastHitNanos == 0 || nanos - lastHitNanos > 0))
+                lastHitNanos = nanos;
+        }
+        if (total == 0)
+            return;
+        long lastHit = System.currentTimeMillis() - (System.nanoTime() - lastHitNanos) / 1000000;
+        Intent intent = new Intent(ACTION_TELEMETRY)
+                .setPackage(BuildConfig.APPLICATION_ID)
+                .putExtra(EXTRA_PACKAGE, mPackageName)
+                .putExtra(EXTRA_HOOKS, hooks)
+                .putExtra(EXTRA_HITS, hits)
+                .putExtra(EXTRA_LAST_HIT, lastHit);
+        mContext.sendBroadcast(SenderIdentity.stamp(mContext, intent));
+    }
+}
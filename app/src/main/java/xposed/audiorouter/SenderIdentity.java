@@ -0,0 +1,61 @@
+package xposed.audiorouter;
+
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Build;
+
+/**
+ * Tells the module app which app sent it a broadcast. Hooked processes can't hold the module's
+ * permission, so reports from them carry a {@link PendingIntent} of their own making instead,
+ * whose creator uid the system vouches for. A report is only trusted for packages of that uid.
+ */
+final class SenderIdentity {
+
+    private static final String ACTION_IDENTITY = "xposed.audiorouter.action.IDENTITY";
+    private static final String EXTRA_SENDER = "sender";
+
+    // Only touched on the main thread
+    private static PendingIntent mToken;
+
+    private SenderIdentity() {
+    }
+
+    /**
+     * @return {@code intent}, marked as sent by this process's app
+     */
+    static Intent stamp(Context context, Intent intent) {
+        if (null == mToken) {
+            // Immutable is required from Android 12 on, and nothing ever fills this in anyway
+            int flags = Build.VERSION.SDK_INT >= Build.VERSION_CODES.M ? PendingIntent.FLAG_IMMUTABLE : 0;
+            mToken = PendingIntent.getBroadcast(context, 0,
+                    new Intent(ACTION_IDENTITY).setPackage(context.getPackageName()), flags);
+        }
+        return intent.putExtra(EXTRA_SENDER, mToken);
+    }
+
+    /**
+     * @return whether {@code intent} was stamped by the app {@code packageName} belongs to
+     */
+    static boolean isFrom(Context context, Intent intent, String packageName) {
+        if (null == packageName)
+            return false;
+        PendingIntent sender;
+        try {
+            sender = intent.getParcelableExtra(EXTRA_SENDER);
+        } catch (RuntimeException e) {
+            // Extras that don't unparcel, or aren't a PendingIntent
+            return false;
+        }
+        if (null == sender)
+            return false;
+        String[] packages = context.getPackageManager().getPackagesForUid(sender.getCreatorUid());
+        if (null == packages)
+            return false;
+        for (String p : packages) {
+            if (packageName.equals(p))
+                return true;
+        }
+        return false;
+    }
+}
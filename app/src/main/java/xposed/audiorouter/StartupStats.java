@@ -0,0 +1,51 @@
+package xposed.audiorouter;
+
+import android.os.Bundle;
+
+import java.lang.reflect.Method;
+
+/**
+ * What the module costs at start up in each process it installs hooks in: the time from finding
+ * the process's package to having its hooks in place, and the classes loaded meanwhile.
+ */
+final class StartupStats {
+
+    static final String EXTRA_PROCESS_INIT_NANOS = "process_init_nanos";
+    static final String EXTRA_PROCESS_CLASSES = "process_classes";
+
+    private static long mProcessInitNanos = -1;
+    private static int mProcessClasses = -1;
+
+    private StartupStats() {
+    }
+
+    static void recordProcessInit(long nanos, int classesBefore) {
+        mProcessInitNanos = nanos;
+        mProcessClasses = delta(classesBefore);
+        HookLog.i("Hooks installed in " + nanos / 1000 + "us, " + mProcessClasses + " classes loaded");
+    }
+
+    /**
+     * @return how many classes the VM has loaded, or -1 where that isn't available
+     */
+    static int loadedClassCount() {
+        try {
+            Method method = Class.forName("dalvik.system.VMDebug").getMethod("getLoadedClassCount");
+            return (Integer) method.invoke(null);
+        } catch (Throwable t) {
+            return -1;
+        }
+    }
+
+    private static int delta(int classesBefore) {
+        if (classesBefore < 0)
+            return -1;
+        int classesAfter = loadedClassCount();
+        return classesAfter >= 0 ? classesAfter - classesBefore : -1;
+    }
+
+    static void addTo(Bundle bundle) {
+        bundle.putLong(EXTRA_PROCESS_INIT_NANOS, mProcessInitNanos);
+        bundle.putInt(EXTRA_PROCESS_CLASSES, mProcessClasses);
+    }
+}
@@ -0,0 +1,75 @@
+package xposed.audiorouter;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Accumulates the hit reports hooked processes send through {@link RuleTelemetry}, per package, in
+ * their own preferences file. Reports are already batched, so each one is a single small write.
+ * Any app can send here, so reports only count for packages of the app that sent them.
+ */
+public class TelemetryReceiver extends BroadcastReceiver {
+
+    public static final String PREFERENCES = "telemetry";
+    private static final String SUFFIX_COUNT = ":count";
+    private static final String SUFFIX_LAST_HIT = ":last_hit";
+
+    public static final class Hits {
+
+        public long count;
+        public long lastHit;
+    }
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        String packageName = intent.getStringExtra(RuleTelemetry.EXTRA_PACKAGE);
+        long[] hits = intent.getLongArrayExtra(RuleTelemetry.EXTRA_HITS);
+        if (null == packageName || null == hits || !SenderIdentity.isFrom(context, intent, packageName))
+            return;
+        long count = 0;
+        for (long hit : hits)
+            count += hit;
+        if (count <= 0)
+            return;
+        SharedPreferences prefs = getPrefs(context);
+        long lastHit = Math.max(prefs.getLong(packageName + SUFFIX_LAST_HIT, 0),
+                intent.getLongExtra(RuleTelemetry.EXTRA_LAST_HIT, 0));
+        prefs.edit()
+                .putLong(packageName + SUFFIX_COUNT, prefs.getLong(packageName + SUFFIX_COUNT, 0) + count)
+                .putLong(packageName + SUFFIX_LAST_HIT, lastHit)
+                .apply();
+    }
+
+    public static SharedPreferences getPrefs(Context context) {
+        return context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * @return the hits reported so far, by the package of the process that reported them
+     */
+    public static Map<String, Hits> readHits(Context context) {
+        Map<String, Hits> result = new HashMap<>();
+        for (Map.Entry<String, ?> entry : getPrefs(context).getAll().entrySet()) {
+            String key = entry.getKey();
+            if (!(entry.getValue() instanceof Long))
+                continue;
+            boolean isCount = key.endsWith(SUFFIX_COUNT);
+            if (!isCount && !key.endsWith(SUFFIX_LAST_HIT))
+                continue;
+            String packageName = key.substring(0, key.lastIndexOf(':'));
+            Hits hits = result.get(packageName);
+            if (null == hits)
+                result.put(packageName, hits = new Hits());
+            if (isCount)
+                hits.count = (Long) entry.getValue();
+            else
+                hits.lastHit = (Long) entry.getValue();
+        }
+        return result;
+    }
+}
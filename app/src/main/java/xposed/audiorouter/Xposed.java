@@ -1,103 +1,210 @@
 package xposed.audiorouter;
 
-import android.annotation.SuppressLint;
-import android.app.AndroidAppHelper;
-import android.media.AudioAttributes;
-import android.media.MediaPlayer;
-import android.text.TextUtils;
+import android.os.Environment;
+import android.os.Process;
 
-import com.google.gson.Gson;
-import com.google.gson.reflect.TypeToken;
+import com.google.gson.JsonParseException;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.List;
 
-import de.robv.android.xposed.IXposedHookZygoteInit;
-import de.robv.android.xposed.XC_MethodHook;
+import de.robv.android.xposed.IXposedHookLoadPackage;
 import de.robv.android.xposed.XSharedPreferences;
-
-import static de.robv.android.xposed.XposedBridge.log;
-import static de.robv.android.xposed.XposedHelpers.findAndHookMethod;
-
-public class Xposed implements IXposedHookZygoteInit {
+import de.robv.android.xposed.callbacks.XC_LoadPackage;
+import xposed.audiorouter.rules.RoutingTable;
+import xposed.audiorouter.rules.Rule;
+import xposed.audiorouter.rules.RuleFile;
+import xposed.audiorouter.rules.RuleLookup;
+import xposed.audiorouter.rules.RuleSnapshot;
+import xposed.audiorouter.rules.Rules;
+
+/**
+ * Module entry point. Nothing runs in zygote: anything done there is inherited by every app
+ * process, and XSharedPreferences would start a thread in it. Each process checks the mapped rule
+ * file for its package, and only a process with a rule reads the preferences, parses JSON or
+ * installs hooks.
+ */
+public class Xposed implements IXposedHookLoadPackage, HookRegistry.DecisionSource {
 
     private static final String TAG = Xposed.class.getSimpleName();
     private static final String PACKAGE_NAME = Xposed.class.getPackage().getName();
     public static final String PREFERENCES = "preferences";
+    public static final String PREF_RULES = "rules";
+    public static final String PREF_LOG_LEVEL = "log_level";
+    public static final String PREF_TRACE_HOOKS = "trace_hooks";
+    public static final String PREF_RULES_GENERATION = "rules_generation";
 
     private static XSharedPreferences mPrefs;
+    private static String mPackageName;
+    private static int mUid;
 
-    private Gson mGson = new Gson();
+    private static volatile RuleLookup mRules;
+    private static long mRulesGeneration;
+    private static volatile RoutingDecision mDecision;
+    private static boolean mBuildingDecision;
 
     @Override
-    public void initZygote(StartupParam startupParam) throws Throwable {
-        loadPrefs();
-
+    public void handleLoadPackage(XC_LoadPackage.LoadPackageParam lpparam) throws Throwable {
+        // Resolve once per process, against the package the process was started for
+        if (!lpparam.isFirstApplication || null != mPackageName)
+            return;
+        mPackageName = lpparam.packageName;
+        mUid = Process.myUid();
+        long start = System.nanoTime();
+        int classes = StartupStats.loadedClassCount();
+        if (!hasRule(probeRuleFile()))
+            return;
+        // Only now pay for the preferences, and reload the rules with a matching generation
+        if (!hasRule(getRules()))
+            return;
+
+        XSharedPreferences prefs = getPrefs();
+        HookLog.setTag(mPackageName);
+        HookLog.setLevel(prefs.getInt(PREF_LOG_LEVEL, HookLog.DEFAULT_LEVEL));
+        HookLog.i("Rule found, installing hooks");
+        HookRegistry.installAll(this, prefs.getBoolean(PREF_TRACE_HOOKS, false));
         try {
-            hookMediaPlayer();
-        } catch (Exception e) {
-            log("Error hooking MediaPlayer, " + e.getMessage());
+            ProcessReceiver.install(mPackageName);
+        } catch (Throwable t) {
+            HookLog.e("Error installing process receiver, " + t.getMessage());
         }
+        StartupStats.recordProcessInit(System.nanoTime() - start, classes);
+    }
+
+    private static boolean hasRule(RuleLookup rules) {
+        // Without a rule file there is nothing to probe, the full load decides
+        if (null == rules)
+            return true;
+        RoutingTable table = getTable(rules);
+        return null != table && table.routesAnything();
+    }
+
+    /**
+     * Resolves this process by uid, which also settles processes shared by several packages the
+     * way the app chose. Falls back to the package name for rules without a uid map, or for apps
+     * installed since the rules were published.
+     */
+    private static RoutingTable getTable(RuleLookup rules) {
+        RoutingTable table = rules.getTableForUid(mUid);
+        return null != table ? table : rules.getTableForPackage(mPackageName);
+    }
+
+    /**
+     * @return the rule file, mapped without touching the preferences, or null if there is none
+     */
+    private static RuleLookup probeRuleFile() {
+        File ruleFile = getRuleFile();
+        if (!ruleFile.exists())
+            return null;
         try {
-            hookAudioAttributesBuilder();
-        } catch (Exception e) {
-            log("Error hooking AudioAttributesBuilder, " + e.getMessage());
+            return RuleFile.open(ruleFile);
+        } catch (IOException e) {
+            return null;
         }
     }
 
-    private void hookMediaPlayer() {
-        XC_MethodHook prepareHook = new XC_MethodHook() {
-            @SuppressLint("DefaultLocale")
-            @Override
-            protected void beforeHookedMethod(MethodHookParam param) throws Throwable {
-                String packageName = AndroidAppHelper.currentPackageName();
-                Rule rule = getRuleForPackage(packageName);
-                int stream;
-                if (null != rule && (stream = rule.getStream()) != -1) {
-                    log(String.format("MediaPlayer.prepare/prepareAsync: Rule found for package [%s]", packageName));
-                    MediaPlayer mediaPlayer = (MediaPlayer) param.thisObject;
-                    mediaPlayer.setAudioStreamType(stream);
-                    log(String.format("MediaPlayer.prepare/prepareAsync: AudioStreamType.set to [%d]", stream));
+    @Override
+    public RoutingDecision getDecision() {
+        RuleLookup rules = getRules();
+        RoutingDecision decision = mDecision;
+        if (null != decision && decision.rules == rules)
+            return decision;
+        synchronized (Xposed.class) {
+            // Building the decision's AudioAttributes re-enters the hooks on this thread
+            if (mBuildingDecision)
+                return RoutingDecision.NONE;
+            decision = mDecision;
+            if (null == decision || decision.rules != rules) {
+                mBuildingDecision = true;
+                try {
+                    mDecision = decision = new RoutingDecision(rules, getTable(rules));
+                    if (null != decision.getCondition())
+                        DeviceState.track(decision.getCondition());
+                } finally {
+                    mBuildingDecision = false;
                 }
             }
-        };
-        findAndHookMethod(MediaPlayer.class, "prepare", prepareHook);
-        findAndHookMethod(MediaPlayer.class, "prepareAsync", prepareHook);
+            return decision;
+        }
     }
 
-    private void hookAudioAttributesBuilder() {
-        findAndHookMethod(AudioAttributes.Builder.class, "build", new XC_MethodHook() {
-            @SuppressLint("DefaultLocale")
-            @Override
-            protected void beforeHookedMethod(MethodHookParam param) throws Throwable {
-                String packageName = AndroidAppHelper.currentPackageName();
-                Rule rule = getRuleForPackage(packageName);
-                int stream;
-                if (null != rule && (stream = rule.getStream()) != -1) {
-                    log(String.format("AudioAttributes.Builder.build: Rule found for package [%s]", packageName));
-                    AudioAttributes.Builder builder = (AudioAttributes.Builder) param.thisObject;
-                    builder.setLegacyStreamType(stream);
-                    log(String.format("AudioAttributes.Builder.build: LegacyStreamType set to [%d]", stream));
-                }
+    private static RuleLookup getRules() {
+        RuleLookup rules = mRules;
+        if (null == rules) {
+            synchronized (Xposed.class) {
+                if (null == (rules = mRules))
+                    mRules = rules = loadRules();
             }
-        });
+        }
+        return rules;
+    }
+
+    /**
+     * Swaps in freshly loaded rules if {@code generation} is newer than the loaded ones. Called off
+     * the hook path, when the app announces a change.
+     */
+    static synchronized void onRulesChanged(long generation) {
+        if (generation <= mRulesGeneration)
+            return;
+        RuleLookup rules = loadRules();
+        mRulesGeneration = Math.max(generation, mRulesGeneration);
+        mRules = rules;
     }
 
-    private Rule getRuleForPackage(String packageName) {
-        mPrefs.reload();
-        String json = mPrefs.getString("rules", "");
-        List<Rule> rules = mGson.fromJson(json, new TypeToken<List<Rule>>() {
-        }.getType());
-        if (null != rules)
-            for (Rule rule : rules) {
-                if (TextUtils.equals(packageName, rule.getPackageName()))
-                    return rule;
+    /**
+     * Catches up on changes announced before this process could receive them.
+     */
+    static void checkRulesGeneration() {
+        XSharedPreferences prefs = getPrefs();
+        prefs.reload();
+        onRulesChanged(prefs.getLong(PREF_RULES_GENERATION, 0));
+    }
+
+    private static RuleLookup loadRules() {
+        XSharedPreferences prefs = getPrefs();
+        prefs.reload();
+        // Read before mapping: the app writes the file before committing its generation, so the
+        // mapped file is never older than the generation recorded here
+        mRulesGeneration = Math.max(mRulesGeneration, prefs.getLong(PREF_RULES_GENERATION, 0));
+        File ruleFile = getRuleFile();
+        if (ruleFile.exists()) {
+            try {
+                return RuleFile.open(ruleFile);
+            } catch (IOException e) {
+                HookLog.e("Error mapping rule file, " + e.getMessage());
             }
-        return null;
+        }
+        // Rules saved before the app published a rule file only live in the prefs
+        return JsonRules.parse(prefs.getString(PREF_RULES, ""));
     }
 
+    private static File getRuleFile() {
+        File dataDir = new File(Environment.getDataDirectory(), "data/" + PACKAGE_NAME);
+        return new File(dataDir, "files/" + RuleFile.FILE_NAME);
+    }
+
+    private static synchronized XSharedPreferences getPrefs() {
+        if (null == mPrefs) {
+            mPrefs = new XSharedPreferences(PACKAGE_NAME, PREFERENCES);
+            mPrefs.makeWorldReadable();
+        }
+        return mPrefs;
+    }
 
-    public static void loadPrefs() {
-        mPrefs = new XSharedPreferences(PACKAGE_NAME, PREFERENCES);
-        mPrefs.makeWorldReadable();
+    /**
+     * Kept out of {@link Xposed} so verifying it, which happens in zygote, doesn't load Gson.
+     */
+    private static final class JsonRules {
+
+        static RuleLookup parse(String json) {
+            try {
+                List<Rule> rules = Rules.fromJson(json);
+                return RuleSnapshot.of(rules);
+            } catch (JsonParseException e) {
+                HookLog.e("Error parsing rules, " + e.getMessage());
+                return RuleSnapshot.EMPTY;
+            }
+        }
     }
 }
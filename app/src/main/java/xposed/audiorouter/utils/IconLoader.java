@@ -0,0 +1,166 @@
+package xposed.audiorouter.utils;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+import android.util.LruCache;
+import android.widget.ImageView;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import xposed.audiorouter.R;
+
+/**
+ * Loads package and activity icons off the main thread into a size bounded memory cache shared by
+ * every list in the app. Binding a recycled view cancels whatever it was still waiting for.
+ */
+public class IconLoader {
+
+    private static final String TAG = IconLoader.class.getSimpleName();
+    private static final int THREADS = 2;
+
+    public interface Source {
+        String getKey();
+
+        Drawable loadIcon(PackageManager packageManager);
+    }
+
+    private static IconLoader sInstance;
+
+    private final PackageManager packageManager;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final LruCache<String, Drawable> cache;
+    private final ExecutorService executor = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, "IconLoader");
+        }
+    });
+
+    private IconLoader(Context context) {
+        packageManager = context.getPackageManager();
+        // An eighth of the heap, in bytes
+        int maxSize = (int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / 8);
+        cache = new LruCache<String, Drawable>(maxSize) {
+            @Override
+            protected int sizeOf(String key, Drawable value) {
+                return sizeOfDrawable(value);
+            }
+        };
+    }
+
+    public static synchronized IconLoader getInstance(Context context) {
+        if (null == sInstance)
+            sInstance = new IconLoader(context.getApplicationContext());
+        return sInstance;
+    }
+
+    public static Source forPackage(final String packageName) {
+        return new Source() {
+            @Override
+            public String getKey() {
+                return packageName;
+            }
+
+            @Override
+            public Drawable loadIcon(PackageManager packageManager) {
+                try {
+                    return packageManager.getApplicationIcon(packageName);
+                } catch (PackageManager.NameNotFoundException e) {
+                    Log.d(TAG, "loadIcon: Error loading application icon, " + e.getMessage());
+                    return null;
+                }
+            }
+        };
+    }
+
+    public void bind(ImageView view, Source source) {
+        Request previous = (Request) view.getTag(R.id.icon_loader_request);
+        if (null != previous) {
+            if (previous.key.equals(source.getKey()))
+                return;
+            previous.cancel();
+        }
+        Drawable icon = cache.get(source.getKey());
+        if (null != icon) {
+            view.setTag(R.id.icon_loader_request, null);
+            view.setImageDrawable(newDrawable(icon));
+            return;
+        }
+        view.setImageResource(R.drawable.ic_default_package);
+        Request request = new Request(view, source);
+        view.setTag(R.id.icon_loader_request, request);
+        request.future = executor.submit(request);
+    }
+
+    private static Drawable newDrawable(Drawable icon) {
+        // A Drawable can only call back into one view, so each binding gets its own instance
+        Drawable.ConstantState state = icon.getConstantState();
+        return null != state ? state.newDrawable() : icon;
+    }
+
+    private static int sizeOfDrawable(Drawable drawable) {
+        if (drawable instanceof BitmapDrawable) {
+            Bitmap bitmap = ((BitmapDrawable) drawable).getBitmap();
+            if (null != bitmap)
+                return bitmap.getByteCount();
+        }
+        return Math.max(1, drawable.getIntrinsicWidth()) * Math.max(1, drawable.getIntrinsicHeight()) * 4;
+    }
+
+    private class Request implements Runnable {
+
+        private final ImageView view;
+        private final Source source;
+        private final String key;
+        private volatile boolean cancelled;
+        private Future<?> future;
+
+        Request(ImageView view, Source source) {
+            this.view = view;
+            this.source = source;
+            this.key = source.getKey();
+        }
+
+        void cancel() {
+            cancelled = true;
+            if (null != future)
+                future.cancel(false);
+        }
+
+        @Override
+        public void run() {
+            if (cancelled)
+                return;
+            Drawable cached = cache.get(key);
+            final Drawable icon = null != cached ? cached : source.loadIcon(packageManager);
+            if (null == icon)
+                return;
+            cache.put(key, icon);
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (cancelled || view.getTag(R.id.icon_loader_request) != Request.this)
+                        return;
+                    view.setTag(R.id.icon_loader_request, null);
+                    view.setImageDrawable(newDrawable(icon));
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,293 @@
+package xposed.audiorouter.utils;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.text.Collator;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * On-disk index of launchable activities with their label, collation key and a downsampled icon,
+ * so the package picker can render before {@link PackageManager} has been asked anything. Entries
+ * are re-resolved only when their package's {@code lastUpdateTime} changes.
+ */
+public class PackageIndex {
+
+    private static final String TAG = PackageIndex.class.getSimpleName();
+    private static final String FILE_NAME = "package_index.bin";
+    private static final int VERSION = 1;
+    private static final int ICON_SIZE_DP = 48;
+
+    public static class Entry implements IconLoader.Source {
+
+        public final String packageName;
+        public final String activityName;
+        public final String label;
+        final long lastUpdateTime;
+        final byte[] collationKey;
+        final byte[] icon;
+        private final String key;
+
+        Entry(String packageName, String activityName, String label, long lastUpdateTime,
+              byte[] collationKey, byte[] icon) {
+            this.packageName = packageName;
+            this.activityName = activityName;
+            this.label = label;
+            this.lastUpdateTime = lastUpdateTime;
+            this.collationKey = collationKey;
+            this.icon = icon;
+            this.key = new ComponentName(packageName, activityName).flattenToShortString();
+        }
+
+        @Override
+        public String getKey() {
+            // Updates can change the icon, so they must not hit an older cached one
+            return key + '@' + lastUpdateTime;
+        }
+
+        @Override
+        public Drawable loadIcon(PackageManager packageManager) {
+            if (null != icon) {
+                Bitmap bitmap = BitmapFactory.decodeByteArray(icon, 0, icon.length);
+                if (null != bitmap)
+                    return new BitmapDrawable(Resources.getSystem(), bitmap);
+            }
+            try {
+                return packageManager.getActivityIcon(new ComponentName(packageName, activityName));
+            } catch (PackageManager.NameNotFoundException e) {
+                Log.d(TAG, "loadIcon: Error loading activity icon, " + e.getMessage());
+                return null;
+            }
+        }
+    }
+
+    private static final Comparator<Entry> COLLATION_ORDER = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry lhs, Entry rhs) {
+            byte[] a = lhs.collationKey;
+            byte[] b = rhs.collationKey;
+            for (int i = 0, n = Math.min(a.length, b.length); i < n; i++) {
+                int diff = (a[i] & 0xff) - (b[i] & 0xff);
+                if (diff != 0)
+                    return diff;
+            }
+            return a.length - b.length;
+        }
+    };
+
+    private static PackageIndex sInstance;
+
+    private final File file;
+    private final int iconSize;
+    private List<Entry> entries;
+
+    private PackageIndex(Context context) {
+        file = new File(context.getFilesDir(), FILE_NAME);
+        iconSize = Math.round(ICON_SIZE_DP * context.getResources().getDisplayMetrics().density);
+    }
+
+    public static synchronized PackageIndex getInstance(Context context) {
+        if (null == sInstance)
+            sInstance = new PackageIndex(context.getApplicationContext());
+        return sInstance;
+    }
+
+    /**
+     * @return the indexed entries in label order, reading the index file on first use. Call off
+     * the main thread.
+     */
+    public synchronized List<Entry> getEntries() {
+        if (null == entries)
+            entries = read();
+        return entries;
+    }
+
+    /**
+     * Brings the index in line with {@link PackageManager}, re-resolving only packages that were
+     * installed or updated since they were indexed. Call off the main thread.
+     */
+    public List<Entry> refresh(PackageManager packageManager) {
+        Map<String, Entry> indexed = new HashMap<>();
+        for (Entry entry : getEntries())
+            indexed.put(entry.key, entry);
+
+        Map<String, Long> updateTimes = new HashMap<>();
+        for (PackageInfo info : packageManager.getInstalledPackages(0))
+            updateTimes.put(info.packageName, info.lastUpdateTime);
+
+        Intent intent = new Intent(Intent.ACTION_MAIN);
+        intent.addCategory(Intent.CATEGORY_LAUNCHER);
+        List<ResolveInfo> resolveInfos = packageManager.queryIntentActivities(intent, 0);
+        Collator collator = Collator.getInstance();
+        List<Entry> refreshed = new ArrayList<>(resolveInfos.size());
+        boolean changed = resolveInfos.size() != indexed.size();
+        for (ResolveInfo resolveInfo : resolveInfos) {
+            String packageName = resolveInfo.activityInfo.packageName;
+            String activityName = resolveInfo.activityInfo.name;
+            Long updateTime = updateTimes.get(packageName);
+            long lastUpdateTime = null != updateTime ? updateTime : 0;
+            Entry entry = indexed.get(new ComponentName(packageName, activityName).flattenToShortString());
+            if (null == entry || entry.lastUpdateTime != lastUpdateTime) {
+                String label = resolveInfo.loadLabel(packageManager).toString();
+                entry = new Entry(packageName, activityName, label, lastUpdateTime,
+                        collator.getCollationKey(label).toByteArray(),
+                        encodeIcon(resolveInfo.loadIcon(packageManager)));
+                changed = true;
+            }
+            refreshed.add(entry);
+        }
+        Collections.sort(refreshed, COLLATION_ORDER);
+        refreshed = Collections.unmodifiableList(refreshed);
+        synchronized (this) {
+            entries = refreshed;
+            if (changed)
+                write(refreshed);
+        }
+        return refreshed;
+    }
+
+    /**
+     * Drops a package's entries so that the next {@link #refresh(PackageManager)} re-resolves it.
+     * Call off the main thread.
+     */
+    public synchronized void invalidate(String packageName) {
+        List<Entry> current = getEntries();
+        List<Entry> remaining = new ArrayList<>(current.size());
+        for (Entry entry : current) {
+            if (!entry.packageName.equals(packageName))
+                remaining.add(entry);
+        }
+        if (remaining.size() != current.size()) {
+            entries = Collections.unmodifiableList(remaining);
+            write(entries);
+        }
+    }
+
+    private byte[] encodeIcon(Drawable drawable) {
+        if (null == drawable)
+            return null;
+        Bitmap bitmap = Bitmap.createBitmap(iconSize, iconSize, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+        drawable.setBounds(0, 0, iconSize, iconSize);
+        drawable.draw(canvas);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+        bitmap.recycle();
+        return out.toByteArray();
+    }
+
+    private List<Entry> read() {
+        List<Entry> result = new ArrayList<>();
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != VERSION)
+                return Collections.emptyList();
+            // Collation keys are only comparable under the locale they were made for
+            boolean sameLocale = Locale.getDefault().toString().equals(in.readUTF());
+            Collator collator = Collator.getInstance();
+            for (int i = 0, count = in.readInt(); i < count; i++) {
+                String packageName = in.readUTF();
+                String activityName = in.readUTF();
+                String label = in.readUTF();
+                long lastUpdateTime = in.readLong();
+                byte[] collationKey = readBytes(in);
+                byte[] icon = readBytes(in);
+                if (!sameLocale)
+                    collationKey = collator.getCollationKey(label).toByteArray();
+                result.add(new Entry(packageName, activityName, label, lastUpdateTime, collationKey, icon));
+            }
+        } catch (FileNotFoundException e) {
+            return Collections.emptyList();
+        } catch (IOException e) {
+            Log.e(TAG, "read: Error reading package index, " + e.getMessage());
+            return Collections.emptyList();
+        } finally {
+            closeQuietly(in);
+        }
+        Collections.sort(result, COLLATION_ORDER);
+        return Collections.unmodifiableList(result);
+    }
+
+    private void write(List<Entry> entries) {
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(VERSION);
+            out.writeUTF(Locale.getDefault().toString());
+            out.writeInt(entries.size());
+            for (Entry entry : entries) {
+                out.writeUTF(entry.packageName);
+                out.writeUTF(entry.activityName);
+                out.writeUTF(entry.label);
+                out.writeLong(entry.lastUpdateTime);
+                writeBytes(out, entry.collationKey);
+                writeBytes(out, entry.icon);
+            }
+            out.close();
+            out = null;
+            if (!tmp.renameTo(file))
+                Log.e(TAG, "write: Error renaming package index");
+        } catch (IOException e) {
+            Log.e(TAG, "write: Error writing package index, " + e.getMessage());
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0)
+            return null;
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        if (null == bytes) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (null != closeable) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package xposed.audiorouter.utils;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * Sorted token table over a fixed list of items, answering "which items have a token starting
+ * with each word of this query" with one binary search per word. Results keep the items' order.
+ */
+public class PrefixIndex<T> {
+
+    private static final Pattern MARKS = Pattern.compile("\\p{M}+");
+    private static final Pattern SEPARATORS = Pattern.compile("[^\\p{L}\\p{N}]+");
+
+    public interface Tokenizer<T> {
+        /**
+         * @return the raw strings to index for {@code item}, each is normalized and split into
+         * words
+         */
+        String[] getStrings(T item);
+    }
+
+    private final List<T> items;
+    private final String[] tokens;
+    private final int[] owners;
+
+    public PrefixIndex(List<T> items, Tokenizer<T> tokenizer) {
+        this.items = items;
+        List<Token> table = new ArrayList<>(items.size() * 6);
+        for (int i = 0; i < items.size(); i++) {
+            for (String string : tokenizer.getStrings(items.get(i))) {
+                if (null == string)
+                    continue;
+                String normalized = normalize(string);
+                // The whole string as well as each of its words, so matches can start mid-name
+                table.add(new Token(normalized, i));
+                for (String word : SEPARATORS.split(normalized)) {
+                    if (!word.isEmpty() && !word.equals(normalized))
+                        table.add(new Token(word, i));
+                }
+            }
+        }
+        Collections.sort(table);
+        tokens = new String[table.size()];
+        owners = new int[table.size()];
+        for (int i = 0; i < tokens.length; i++) {
+            tokens[i] = table.get(i).text;
+            owners[i] = table.get(i).owner;
+        }
+    }
+
+    public static String normalize(String s) {
+        String decomposed = Normalizer.normalize(s, Normalizer.Form.NFD);
+        return MARKS.matcher(decomposed).replaceAll("").toLowerCase(Locale.ROOT).trim();
+    }
+
+    public List<T> query(String query) {
+        String normalized = normalize(query);
+        if (normalized.isEmpty())
+            return items;
+        BitSet result = null;
+        for (String word : SEPARATORS.split(normalized)) {
+            if (word.isEmpty())
+                continue;
+            BitSet matches = match(word);
+            if (null == result)
+                result = matches;
+            else
+                result.and(matches);
+        }
+        if (null == result)
+            return items;
+        List<T> filtered = new ArrayList<>(result.cardinality());
+        for (int i = result.nextSetBit(0); i >= 0; i = result.nextSetBit(i + 1))
+            filtered.add(items.get(i));
+        return filtered;
+    }
+
+    private BitSet match(String prefix) {
+        BitSet matches = new BitSet(items.size());
+        // Lower bound, tokens repeat across items so any exact hit may not be the first
+        int low = 0;
+        int high = tokens.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (tokens[mid].compareTo(prefix) < 0)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        for (int i = low; i < tokens.length && tokens[i].startsWith(prefix); i++)
+            matches.set(owners[i]);
+        return matches;
+    }
+
+    private static class Token implements Comparable<Token> {
+
+        private final String text;
+        private final int owner;
+
+        Token(String text, int owner) {
+            this.text = text;
+            this.owner = owner;
+        }
+
+        @Override
+        public int compareTo(Token another) {
+            return text.compareTo(another.text);
+        }
+    }
+}
@@ -0,0 +1,280 @@
+package xposed.audiorouter.utils;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.media.AudioFormat;
+import android.media.AudioTrack;
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Plays a raw resource on any stream with next to no start up delay. The resource is decoded to
+ * PCM once, and each stream gets one static {@link AudioTrack} holding that PCM, created the
+ * first time the stream is used and kept until {@link #release()}. Switching streams only stops
+ * one track and restarts another.
+ * <p>
+ * Call everything on the main thread; tracks are driven from a single worker thread.
+ */
+public class TestSoundPlayer {
+
+    private static final String TAG = TestSoundPlayer.class.getSimpleName();
+    private static final int MAX_SECONDS = 5;
+    private static final long TIMEOUT_US = 10000;
+    // Far longer than decoding a few seconds takes; a codec that stalls gets no longer
+    private static final long MAX_DECODE_MS = 5000;
+
+    public interface Listener {
+        void onPlaybackStateChanged();
+    }
+
+    private final Context context;
+    private final int resId;
+    private final Listener listener;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    // Only touched on the executor
+    private final SparseArray<AudioTrack> tracks = new SparseArray<>();
+    private Pcm pcm;
+    private AudioTrack current;
+    // Only touched on the main thread
+    private int playingStream = -1;
+
+    public TestSoundPlayer(Context context, int resId, Listener listener) {
+        this.context = context.getApplicationContext();
+        this.resId = resId;
+        this.listener = listener;
+    }
+
+    /**
+     * Decodes the sound and prepares {@code stream}'s track ahead of the first {@link #play(int)}.
+     */
+    public void preload(final int stream) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                getTrack(stream);
+            }
+        });
+    }
+
+    /**
+     * Plays the sound from the start on {@code stream}, stopping whatever was playing.
+     */
+    public void play(final int stream) {
+        playingStream = stream;
+        listener.onPlaybackStateChanged();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                stopCurrent();
+                AudioTrack track = getTrack(stream);
+                if (null == track) {
+                    postStopped(stream);
+                    return;
+                }
+                // Stopping a static track and reloading rewinds it
+                track.reloadStaticData();
+                track.setNotificationMarkerPosition(pcm.frames);
+                track.play();
+                current = track;
+            }
+        });
+    }
+
+    public void stop() {
+        if (playingStream == -1)
+            return;
+        playingStream = -1;
+        listener.onPlaybackStateChanged();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                stopCurrent();
+            }
+        });
+    }
+
+    public boolean isPlaying() {
+        return playingStream != -1;
+    }
+
+    public void release() {
+        playingStream = -1;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < tracks.size(); i++)
+                    tracks.valueAt(i).release();
+                tracks.clear();
+                current = null;
+            }
+        });
+        executor.shutdown();
+    }
+
+    private void stopCurrent() {
+        if (null != current) {
+            current.stop();
+            current = null;
+        }
+    }
+
+    private void postStopped(final int stream) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (playingStream != stream)
+                    return;
+                playingStream = -1;
+                listener.onPlaybackStateChanged();
+            }
+        });
+    }
+
+    private AudioTrack getTrack(final int stream) {
+        AudioTrack track = tracks.get(stream);
+        if (null != track)
+            return track;
+        if (null == pcm) {
+            try {
+                long start = System.nanoTime();
+                pcm = decode();
+                Log.d(TAG, "getTrack: Decoded " + pcm.data.length + " bytes in "
+                        + (System.nanoTime() - start) / 1000000 + " ms");
+            } catch (IOException | RuntimeException e) {
+                Log.e(TAG, "getTrack: Error decoding test sound, " + e.getMessage());
+                return null;
+            }
+        }
+        int channelMask = pcm.channels == 1 ? AudioFormat.CHANNEL_OUT_MONO : AudioFormat.CHANNEL_OUT_STEREO;
+        track = new AudioTrack(stream, pcm.sampleRate, channelMask, AudioFormat.ENCODING_PCM_16BIT,
+                pcm.data.length, AudioTrack.MODE_STATIC);
+        if (track.getState() == AudioTrack.STATE_UNINITIALIZED
+                || track.write(pcm.data, 0, pcm.data.length) != pcm.data.length) {
+            Log.e(TAG, "getTrack: Error creating track for stream " + stream);
+            track.release();
+            return null;
+        }
+        track.setPlaybackPositionUpdateListener(new AudioTrack.OnPlaybackPositionUpdateListener() {
+            @Override
+            public void onMarkerReached(AudioTrack audioTrack) {
+                postStopped(stream);
+            }
+
+            @Override
+            public void onPeriodicNotification(AudioTrack audioTrack) {
+            }
+        }, handler);
+        tracks.put(stream, track);
+        return track;
+    }
+
+    private Pcm decode() throws IOException {
+        MediaExtractor extractor = new MediaExtractor();
+        MediaCodec codec = null;
+        boolean started = false;
+        try {
+            AssetFileDescriptor afd = context.getResources().openRawResourceFd(resId);
+            try {
+                extractor.setDataSource(afd.getFileDescriptor(), afd.getStartOffset(), afd.getLength());
+            } finally {
+                afd.close();
+            }
+            MediaFormat format = null;
+            for (int i = 0; i < extractor.getTrackCount(); i++) {
+                MediaFormat trackFormat = extractor.getTrackFormat(i);
+                if (trackFormat.getString(MediaFormat.KEY_MIME).startsWith("audio/")) {
+                    extractor.selectTrack(i);
+                    format = trackFormat;
+                    break;
+                }
+            }
+            if (null == format)
+                throw new IOException("No audio track");
+            int sampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+            int channels = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+            codec = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+            codec.configure(format, null, null, 0);
+            codec.start();
+            started = true;
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            byte[] chunk = new byte[0];
+            boolean inputDone = false;
+            long deadline = SystemClock.elapsedRealtime() + MAX_DECODE_MS;
+            while (out.size() < MAX_SECONDS * sampleRate * channels * 2) {
+                if (SystemClock.elapsedRealtime() > deadline)
+                    throw new IOException("Decoding timed out");
+                if (!inputDone) {
+                    int index = codec.dequeueInputBuffer(TIMEOUT_US);
+                    if (index >= 0) {
+                        int size = extractor.readSampleData(codec.getInputBuffer(index), 0);
+                        if (size < 0) {
+                            codec.queueInputBuffer(index, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                            inputDone = true;
+                        } else {
+                            codec.queueInputBuffer(index, 0, size, extractor.getSampleTime(), 0);
+                            extractor.advance();
+                        }
+                    }
+                }
+                int index = codec.dequeueOutputBuffer(info, TIMEOUT_US);
+                if (index >= 0) {
+                    ByteBuffer buffer = codec.getOutputBuffer(index);
+                    if (chunk.length < info.size)
+                        chunk = new byte[info.size];
+                    buffer.position(info.offset);
+                    buffer.get(chunk, 0, info.size);
+                    out.write(chunk, 0, info.size);
+                    codec.releaseOutputBuffer(index, false);
+                    if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0)
+                        break;
+                } else if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                    MediaFormat outputFormat = codec.getOutputFormat();
+                    sampleRate = outputFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+                    channels = outputFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+                }
+            }
+            return new Pcm(out.toByteArray(), sampleRate, channels);
+        } finally {
+            if (null != codec) {
+                if (started)
+                    codec.stop();
+                codec.release();
+            }
+            extractor.release();
+        }
+    }
+
+    private static final class Pcm {
+
+        private final byte[] data;
+        private final int sampleRate;
+        private final int channels;
+        private final int frames;
+
+        Pcm(byte[] data, int sampleRate, int channels) {
+            int frameSize = channels * 2;
+            int maxLength = MAX_SECONDS * sampleRate * frameSize;
+            int length = Math.min(data.length, maxLength) / frameSize * frameSize;
+            this.data = length == data.length ? data : Arrays.copyOf(data, length);
+            this.sampleRate = sampleRate;
+            this.channels = channels;
+            this.frames = length / frameSize;
+        }
+    }
+}
@@ -0,0 +1,264 @@
+package xposed.audiorouter.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import xposed.audiorouter.rules.RoutingTable;
+import xposed.audiorouter.rules.Rule;
+import xposed.audiorouter.rules.RuleFile;
+import xposed.audiorouter.rules.RuleLookup;
+import xposed.audiorouter.rules.RuleSnapshot;
+import xposed.audiorouter.rules.UsageRule;
+
+/**
+ * Hammers the hook side lookup path from many threads while a writer keeps replacing the rules,
+ * the way audio objects get built on arbitrary app threads while the module app saves edits.
+ * <p>
+ * Readers follow the hook: one volatile read of the published rules, exact and wildcard lookups
+ * against them, and a recompiled {@link RoutingTable} only when the rules changed. Every rule of
+ * generation g routes to the same stream, so a lookup disagreeing with its own generation is a
+ * torn read, and a generation older than one already published before the read is a stale read.
+ * <p>
+ * Run with {@code ./gradlew :benchmark:stress -PstressArgs="file 1,8,32 10"}: source (file or
+ * snapshot), reader thread counts, seconds per run. Exits non-zero on any torn or stale read.
+ */
+public class LookupStress {
+
+    private static final int RULE_COUNT = 1000;
+    private static final int PATTERN_COUNT = 50;
+    private static final long REWRITE_INTERVAL_MS = 2;
+    private static final int BUCKETS = 24;
+    private static final int NAVIGATION_USAGE = 12;
+
+    private final boolean useFile;
+    private final String[] packages;
+    private final String[] patternPrefixes;
+    private final File file;
+    private final AtomicLong latestGeneration = new AtomicLong();
+    private volatile Published published;
+    private volatile boolean running;
+
+    private LookupStress(boolean useFile) throws IOException {
+        this.useFile = useFile;
+        Random random = new Random(42);
+        packages = new String[RULE_COUNT];
+        for (int i = 0; i < packages.length; i++)
+            packages[i] = RuleBenchmark.packageName(random);
+        patternPrefixes = new String[PATTERN_COUNT];
+        for (int i = 0; i < patternPrefixes.length; i++)
+            patternPrefixes[i] = RuleBenchmark.packageName(random) + '.';
+        file = File.createTempFile("rules", ".bin");
+        file.deleteOnExit();
+        publish(0);
+    }
+
+    public static void main(String[] args) throws Exception {
+        boolean useFile = args.length == 0 || !"snapshot".equals(args[0]);
+        int cores = Runtime.getRuntime().availableProcessors();
+        String threadList = args.length > 1 ? args[1] : "1," + cores + "," + cores * 4;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+        LookupStress stress = new LookupStress(useFile);
+        System.out.println("Source " + (useFile ? "mapped rule file" : "snapshot") + ", " + RULE_COUNT
+                + " rules + " + PATTERN_COUNT + " wildcards, " + cores + " cores, " + seconds + " s per run");
+        System.out.println(String.format("%8s %14s %12s %8s %8s %8s %8s %6s %6s %6s",
+                "threads", "ops/s", "ops/s/thread", "p50", "p99", "p99.9", "max", "gens", "torn", "stale"));
+        long failures = 0;
+        for (String threads : threadList.split(","))
+            failures += stress.run(Integer.parseInt(threads.trim()), seconds);
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    private long run(int threads, int seconds) throws Exception {
+        running = true;
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Reader> readers = new ArrayList<>();
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            Reader reader = new Reader(i);
+            readers.add(reader);
+            workers.add(startThread(reader, start, "reader-" + i));
+        }
+        long firstGeneration = latestGeneration.get();
+        Thread writer = startThread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (running) {
+                        publish(latestGeneration.get() + 1);
+                        Thread.sleep(REWRITE_INTERVAL_MS);
+                    }
+                } catch (InterruptedException | IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }, start, "writer");
+
+        start.countDown();
+        long begin = System.nanoTime();
+        Thread.sleep(seconds * 1000L);
+        running = false;
+        writer.join();
+        for (Thread worker : workers)
+            worker.join();
+        long elapsed = System.nanoTime() - begin;
+
+        long ops = 0;
+        long torn = 0;
+        long stale = 0;
+        long[] histogram = new long[BUCKETS];
+        for (Reader reader : readers) {
+            ops += reader.ops;
+            torn += reader.torn;
+            stale += reader.stale;
+            for (int i = 0; i < BUCKETS; i++)
+                histogram[i] += reader.histogram[i];
+        }
+        double opsPerSecond = ops * 1e9 / elapsed;
+        System.out.println(String.format("%8d %14.0f %12.0f %8s %8s %8s %8s %6d %6d %6d",
+                threads, opsPerSecond, opsPerSecond / threads,
+                format(percentile(histogram, ops, 0.5)), format(percentile(histogram, ops, 0.99)),
+                format(percentile(histogram, ops, 0.999)), format(percentile(histogram, ops, 1)),
+                latestGeneration.get() - firstGeneration, torn, stale));
+        return torn + stale;
+    }
+
+    private static Thread startThread(final Runnable runnable, final CountDownLatch start, String name) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                runnable.run();
+            }
+        }, name);
+        thread.start();
+        return thread;
+    }
+
+    private void publish(long generation) throws IOException {
+        int stream = streamFor(generation);
+        List<Rule> rules = new ArrayList<>(packages.length + patternPrefixes.length);
+        for (String packageName : packages)
+            rules.add(newRule(packageName, stream, generation));
+        for (String prefix : patternPrefixes)
+            rules.add(newRule(prefix + '*', stream, generation));
+        RuleLookup lookup;
+        if (useFile) {
+            // Rewritten through a rename like the app does, readers keep their old mapping meanwhile
+            RuleFile.write(file, rules);
+            lookup = RuleFile.open(file);
+        } else {
+            lookup = RuleSnapshot.of(rules);
+        }
+        published = new Published(generation, lookup);
+        latestGeneration.set(generation);
+    }
+
+    private static Rule newRule(String packageName, int stream, long generation) {
+        Rule rule = RuleBenchmark.newRule(packageName, stream);
+        rule.setUsageStream(UsageRule.KIND_USAGE, NAVIGATION_USAGE, usageStreamFor(generation));
+        return rule;
+    }
+
+    private static int streamFor(long generation) {
+        return (int) (generation % 10);
+    }
+
+    private static int usageStreamFor(long generation) {
+        return (int) ((generation + 1) % 10);
+    }
+
+    private static int bucketFor(long nanos) {
+        int bucket = 64 - Long.numberOfLeadingZeros(nanos >> 4);
+        return Math.min(bucket, BUCKETS - 1);
+    }
+
+    /**
+     * @return the upper bound, in nanoseconds, of the bucket holding the given fraction of ops
+     */
+    private static long percentile(long[] histogram, long total, double fraction) {
+        long target = (long) Math.ceil(total * fraction);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += histogram[i];
+            if (seen >= target && histogram[i] > 0)
+                return 16L << i;
+        }
+        return 16L << (BUCKETS - 1);
+    }
+
+    private static String format(long nanos) {
+        if (nanos < 10000)
+            return "<" + nanos + "ns";
+        if (nanos < 10000000)
+            return "<" + nanos / 1000 + "us";
+        return "<" + nanos / 1000000 + "ms";
+    }
+
+    private static final class Published {
+
+        private final long generation;
+        private final RuleLookup lookup;
+
+        Published(long generation, RuleLookup lookup) {
+            this.generation = generation;
+            this.lookup = lookup;
+        }
+    }
+
+    private final class Reader implements Runnable {
+
+        private final Random random;
+        private final long[] histogram = new long[BUCKETS];
+        private long ops;
+        private long torn;
+        private long stale;
+
+        Reader(int seed) {
+            random = new Random(seed);
+        }
+
+        @Override
+        public void run() {
+            Published seen = null;
+            RoutingTable table = null;
+            long lastGeneration = -1;
+            while (running) {
+                String exact = packages[random.nextInt(packages.length)];
+                String wildcard = patternPrefixes[random.nextInt(patternPrefixes.length)] + "app";
+                long before = latestGeneration.get();
+
+                long start = System.nanoTime();
+                Published current = published;
+                if (current != seen) {
+                    // The hook recompiles its decision only when the rules object changed
+                    table = current.lookup.getTableForPackage(exact);
+                    seen = current;
+                }
+                int exactStream = current.lookup.getStreamForPackage(exact);
+                int wildcardStream = current.lookup.getStreamForPackage(wildcard);
+                int usageStream = null != table ? table.forAttributes(NAVIGATION_USAGE, 0) : -1;
+                long elapsed = System.nanoTime() - start;
+
+                histogram[bucketFor(elapsed)]++;
+                ops++;
+                int expected = streamFor(current.generation);
+                if (exactStream != expected || wildcardStream != expected
+                        || usageStream != usageStreamFor(current.generation))
+                    torn++;
+                if (current.generation < before || current.generation < lastGeneration)
+                    stale++;
+                lastGeneration = current.generation;
+            }
+        }
+    }
+}
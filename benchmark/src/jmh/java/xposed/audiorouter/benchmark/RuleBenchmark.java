@@ -0,0 +1,218 @@
+package xposed.audiorouter.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import xposed.audiorouter.rules.RoutingTable;
+import xposed.audiorouter.rules.Rule;
+import xposed.audiorouter.rules.RuleFile;
+import xposed.audiorouter.rules.RuleSets;
+import xposed.audiorouter.rules.RuleSnapshot;
+import xposed.audiorouter.rules.Rules;
+import xposed.audiorouter.rules.UidMap;
+import xposed.audiorouter.rules.UsageRule;
+
+/**
+ * Cost of everything the hook side does with rules: parsing the stored JSON, building a snapshot,
+ * mapping the binary rule file, looking a package up and deciding a stream from its compiled
+ * table. Run with the gc profiler (the default in build.gradle) to see allocation per operation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class RuleBenchmark {
+
+    private static final int FIRST_APPLICATION_UID = 10000;
+    private static final int[] STREAMS = {-1, 0, 1, 2, 3, 4, 5, 8};
+
+    @Param({"10", "100", "1000", "10000"})
+    public int ruleCount;
+
+    private List<Rule> rules;
+    private String json;
+    private String ruleSet;
+    private RuleSnapshot snapshot;
+    private File file;
+    private RuleFile ruleFile;
+    private String[] hits;
+    private String[] misses;
+    private String[] patternHits;
+    private RoutingTable table;
+    private int[] usages;
+    private int[] contentTypes;
+    private UidMap uidMap;
+    private int[] uids;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        Random random = new Random(42);
+        rules = new ArrayList<>(ruleCount);
+        hits = new String[1024];
+        misses = new String[1024];
+        for (int i = 0; i < ruleCount; i++)
+            rules.add(newRule(packageName(random), STREAMS[random.nextInt(STREAMS.length)]));
+        // A tenth as many vendor wildcards, matched by the trie rather than the exact table
+        List<String> prefixes = new ArrayList<>();
+        for (int i = 0; i < Math.max(1, ruleCount / 10); i++) {
+            String prefix = packageName(random) + '.';
+            prefixes.add(prefix);
+            rules.add(newRule(prefix + '*', STREAMS[random.nextInt(STREAMS.length)]));
+        }
+        patternHits = new String[1024];
+        for (int i = 0; i < patternHits.length; i++)
+            patternHits[i] = prefixes.get(random.nextInt(prefixes.size())) + "app";
+        for (int i = 0; i < hits.length; i++) {
+            // Copies, so lookups can't short-circuit on reference equality
+            hits[i] = new String(rules.get(random.nextInt(ruleCount)).getPackageName());
+            misses[i] = packageName(random) + ".missing";
+        }
+        List<UsageRule> usageRules = new ArrayList<>();
+        usageRules.add(new UsageRule(UsageRule.KIND_USAGE, 12, 3));
+        usageRules.add(new UsageRule(UsageRule.KIND_USAGE, 13, 5));
+        usageRules.add(new UsageRule(UsageRule.KIND_CONTENT_TYPE, 1, 0));
+        table = RoutingTable.compile(4, usageRules);
+        usages = new int[1024];
+        contentTypes = new int[1024];
+        for (int i = 0; i < usages.length; i++) {
+            usages[i] = random.nextInt(RoutingTable.USAGE_COUNT);
+            contentTypes[i] = random.nextInt(RoutingTable.CONTENT_TYPE_COUNT);
+        }
+        json = Rules.toJson(rules);
+        StringWriter writer = new StringWriter();
+        RuleSets.write(writer, rules);
+        ruleSet = writer.toString();
+        snapshot = RuleSnapshot.of(rules);
+        file = File.createTempFile("rules", ".bin");
+        RuleFile.write(file, rules);
+        ruleFile = RuleFile.open(file);
+        UidMap.Builder builder = new UidMap.Builder();
+        for (int i = 0; i < ruleCount; i++)
+            builder.put(FIRST_APPLICATION_UID + i, i);
+        uidMap = new UidMap(IntBuffer.wrap(builder.build()));
+        uids = new int[1024];
+        for (int i = 0; i < uids.length; i++)
+            uids[i] = FIRST_APPLICATION_UID + random.nextInt(ruleCount);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Benchmark
+    public List<Rule> parseJson() {
+        return Rules.fromJson(json);
+    }
+
+    @Benchmark
+    public String serializeJson() {
+        return Rules.toJson(rules);
+    }
+
+    @Benchmark
+    public RuleSets.Report importRuleSet() throws IOException {
+        final List<Rule> imported = new ArrayList<>(ruleCount);
+        return RuleSets.read(new StringReader(ruleSet), new RuleSets.RuleSink() {
+            @Override
+            public void onRule(Rule rule) {
+                imported.add(rule);
+            }
+        });
+    }
+
+    @Benchmark
+    public int exportRuleSet() throws IOException {
+        return RuleSets.write(new StringWriter(ruleSet.length()), rules);
+    }
+
+    @Benchmark
+    public RuleSnapshot parseJsonToSnapshot() {
+        return RuleSnapshot.of(Rules.fromJson(json));
+    }
+
+    @Benchmark
+    public RuleFile mapRuleFile() throws IOException {
+        return RuleFile.open(file);
+    }
+
+    @Benchmark
+    public int snapshotLookupHit() {
+        return snapshot.getStreamForPackage(hits[next++ & 1023]);
+    }
+
+    @Benchmark
+    public int snapshotLookupMiss() {
+        return snapshot.getStreamForPackage(misses[next++ & 1023]);
+    }
+
+    @Benchmark
+    public int snapshotLookupPattern() {
+        return snapshot.getStreamForPackage(patternHits[next++ & 1023]);
+    }
+
+    @Benchmark
+    public int ruleFileLookupHit() {
+        return ruleFile.getStreamForPackage(hits[next++ & 1023]);
+    }
+
+    @Benchmark
+    public int ruleFileLookupMiss() {
+        return ruleFile.getStreamForPackage(misses[next++ & 1023]);
+    }
+
+    @Benchmark
+    public int ruleFileLookupPattern() {
+        return ruleFile.getStreamForPackage(patternHits[next++ & 1023]);
+    }
+
+    @Benchmark
+    public int routingTableLookup() {
+        int i = next++ & 1023;
+        return table.forAttributes(usages[i], contentTypes[i]);
+    }
+
+    @Benchmark
+    public int uidMapLookup() {
+        return uidMap.get(uids[next++ & 1023]);
+    }
+
+    @Benchmark
+    public RoutingTable ruleFileCompileTable() {
+        return ruleFile.getTableForPackage(hits[next++ & 1023]);
+    }
+
+    static Rule newRule(String packageName, int stream) {
+        Rule rule = new Rule(packageName);
+        rule.setStream(stream);
+        return rule;
+    }
+
+    static String packageName(Random random) {
+        StringBuilder sb = new StringBuilder("com.");
+        for (int i = 0, n = 6 + random.nextInt(10); i < n; i++)
+            sb.append((char) ('a' + random.nextInt(26)));
+        sb.append('.');
+        for (int i = 0, n = 4 + random.nextInt(8); i < n; i++)
+            sb.append((char) ('a' + random.nextInt(26)));
+        return sb.toString();
+    }
+}
@@ -0,0 +1,131 @@
+package xposed.audiorouter.rules;
+
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Trie over the prefixes of wildcard rules such as {@code com.vendor.*}, answering "which rule has
+ * the longest prefix of this package name" in one walk over the name, whatever the number of rules.
+ * <p>
+ * The trie is a flat int array so it can live on the heap or inside the mapped rule file. Each
+ * node is [rule, child count, (char, child node offset) * child count], children sorted by char,
+ * with the root at offset 0.
+ */
+public final class PackageMatcher {
+
+    public static final char WILDCARD = '*';
+
+    private final IntBuffer nodes;
+
+    public PackageMatcher(IntBuffer nodes) {
+        this.nodes = nodes;
+    }
+
+    public static boolean isPattern(String packageName) {
+        return null != packageName && !packageName.isEmpty()
+                && packageName.indexOf(WILDCARD) == packageName.length() - 1;
+    }
+
+    /**
+     * @return the rule index of the longest pattern matching {@code packageName}, or -1
+     */
+    public int match(String packageName) {
+        if (null == packageName || nodes.limit() == 0)
+            return -1;
+        int node = 0;
+        int match = nodes.get(node);
+        for (int i = 0; i < packageName.length(); i++) {
+            node = findChild(node, packageName.charAt(i));
+            if (node < 0)
+                break;
+            int rule = nodes.get(node);
+            if (rule >= 0)
+                match = rule;
+        }
+        return match;
+    }
+
+    private int findChild(int node, char c) {
+        int low = 0;
+        int high = nodes.get(node + 1) - 1;
+        int base = node + 2;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int midChar = nodes.get(base + mid * 2);
+            if (midChar < c)
+                low = mid + 1;
+            else if (midChar > c)
+                high = mid - 1;
+            else
+                return nodes.get(base + mid * 2 + 1);
+        }
+        return -1;
+    }
+
+    /**
+     * Collects patterns and flattens them into the node array {@link PackageMatcher} walks.
+     */
+    public static final class Builder {
+
+        private final Node root = new Node();
+        private int size;
+
+        /**
+         * Adds {@code pattern}, ignoring it if an earlier pattern had the same prefix.
+         */
+        public Builder add(String pattern, int rule) {
+            Node node = root;
+            String prefix = pattern.substring(0, pattern.length() - 1);
+            for (int i = 0; i < prefix.length(); i++) {
+                char c = prefix.charAt(i);
+                Node child = node.children.get(c);
+                if (null == child)
+                    node.children.put(c, child = new Node());
+                node = child;
+            }
+            if (node.rule < 0)
+                node.rule = rule;
+            size++;
+            return this;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public int[] build() {
+            if (size == 0)
+                return new int[0];
+            List<Integer> out = new ArrayList<>();
+            write(root, out);
+            int[] nodes = new int[out.size()];
+            for (int i = 0; i < nodes.length; i++)
+                nodes[i] = out.get(i);
+            return nodes;
+        }
+
+        private static int write(Node node, List<Integer> out) {
+            int offset = out.size();
+            out.add(node.rule);
+            out.add(node.children.size());
+            int slot = out.size();
+            for (Map.Entry<Character, Node> entry : node.children.entrySet()) {
+                out.add((int) entry.getKey());
+                out.add(-1);
+            }
+            for (Map.Entry<Character, Node> entry : node.children.entrySet()) {
+                out.set(slot + 1, write(entry.getValue(), out));
+                slot += 2;
+            }
+            return offset;
+        }
+
+        private static final class Node {
+            private final TreeMap<Character, Node> children = new TreeMap<>();
+            private int rule = -1;
+        }
+    }
+}
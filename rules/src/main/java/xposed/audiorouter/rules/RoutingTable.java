@@ -0,0 +1,179 @@
+package xposed.audiorouter.rules;
+
+import java.util.List;
+
+/**
+ * One package's rules flattened into arrays, so the stream for any usage and content type pair,
+ * or any legacy stream type, is a single array read. Unknown or out of range inputs get the
+ * package's default stream.
+ * <p>
+ * For attributes a usage rule beats a content type rule, which beats the default. For a legacy
+ * stream type a legacy stream rule beats the rule for the usage that stream type implies.
+ * <p>
+ * A table may carry a {@link RuleCondition}; the table only applies while the condition holds.
+ */
+public final class RoutingTable {
+
+    /** AudioAttributes.USAGE_UNKNOWN through USAGE_ASSISTANT. */
+    public static final int USAGE_COUNT = 17;
+    /** AudioAttributes.CONTENT_TYPE_UNKNOWN through CONTENT_TYPE_SONIFICATION. */
+    public static final int CONTENT_TYPE_COUNT = 5;
+    /** AudioManager.STREAM_VOICE_CALL through STREAM_ACCESSIBILITY. */
+    public static final int STREAM_COUNT = 11;
+
+    // The usage AudioAttributes.Builder.setLegacyStreamType derives from each stream type
+    private static final int[] STREAM_USAGES = {
+            2,  // STREAM_VOICE_CALL -> USAGE_VOICE_COMMUNICATION
+            13, // STREAM_SYSTEM -> USAGE_ASSISTANCE_SONIFICATION
+            6,  // STREAM_RING -> USAGE_NOTIFICATION_RINGTONE
+            1,  // STREAM_MUSIC -> USAGE_MEDIA
+            4,  // STREAM_ALARM -> USAGE_ALARM
+            5,  // STREAM_NOTIFICATION -> USAGE_NOTIFICATION
+            2,  // STREAM_BLUETOOTH_SCO -> USAGE_VOICE_COMMUNICATION
+            13, // STREAM_SYSTEM_ENFORCED -> USAGE_ASSISTANCE_SONIFICATION
+            3,  // STREAM_DTMF -> USAGE_VOICE_COMMUNICATION_SIGNALLING
+            11, // STREAM_TTS -> USAGE_ASSISTANCE_ACCESSIBILITY
+            11, // STREAM_ACCESSIBILITY -> USAGE_ASSISTANCE_ACCESSIBILITY
+    };
+
+    private final int defaultStream;
+    private final boolean uniform;
+    private final int[] byAttributes;
+    private final int[] byLegacyStream;
+    private final RuleCondition condition;
+
+    private RoutingTable(int defaultStream, boolean uniform, int[] byAttributes, int[] byLegacyStream,
+                         RuleCondition condition) {
+        this.defaultStream = defaultStream;
+        this.uniform = uniform;
+        this.byAttributes = byAttributes;
+        this.byLegacyStream = byLegacyStream;
+        this.condition = condition;
+    }
+
+    public static RoutingTable compile(int defaultStream, List<UsageRule> rules) {
+        return compile(defaultStream, rules, null);
+    }
+
+    public static RoutingTable compile(int defaultStream, List<UsageRule> rules, RuleCondition condition) {
+        int[] usages = filled(USAGE_COUNT, Integer.MIN_VALUE);
+        int[] contentTypes = filled(CONTENT_TYPE_COUNT, Integer.MIN_VALUE);
+        int[] legacyStreams = filled(STREAM_COUNT, Integer.MIN_VALUE);
+        boolean uniform = true;
+        if (null != rules) {
+            for (UsageRule rule : rules) {
+                int[] target;
+                switch (rule.getKind()) {
+                    case UsageRule.KIND_USAGE:
+                        target = usages;
+                        break;
+                    case UsageRule.KIND_CONTENT_TYPE:
+                        target = contentTypes;
+                        break;
+                    case UsageRule.KIND_LEGACY_STREAM:
+                        target = legacyStreams;
+                        break;
+                    default:
+                        continue;
+                }
+                int value = rule.getValue();
+                // First rule for a key wins, as for packages
+                if (value < 0 || value >= target.length || target[value] != Integer.MIN_VALUE)
+                    continue;
+                target[value] = rule.getStream();
+                uniform &= rule.getStream() == defaultStream;
+            }
+        }
+
+        int[] byAttributes = new int[USAGE_COUNT * CONTENT_TYPE_COUNT];
+        for (int usage = 0; usage < USAGE_COUNT; usage++) {
+            for (int contentType = 0; contentType < CONTENT_TYPE_COUNT; contentType++) {
+                int stream = usages[usage];
+                if (stream == Integer.MIN_VALUE)
+                    stream = contentTypes[contentType];
+                if (stream == Integer.MIN_VALUE)
+                    stream = defaultStream;
+                byAttributes[usage * CONTENT_TYPE_COUNT + contentType] = stream;
+            }
+        }
+        int[] byLegacyStream = new int[STREAM_COUNT];
+        for (int legacyStream = 0; legacyStream < STREAM_COUNT; legacyStream++) {
+            int stream = legacyStreams[legacyStream];
+            if (stream == Integer.MIN_VALUE)
+                stream = byAttributes[STREAM_USAGES[legacyStream] * CONTENT_TYPE_COUNT];
+            byLegacyStream[legacyStream] = stream;
+        }
+        return new RoutingTable(defaultStream, uniform, byAttributes, byLegacyStream,
+                RuleCondition.orNull(condition));
+    }
+
+    private static int[] filled(int length, int value) {
+        int[] array = new int[length];
+        for (int i = 0; i < length; i++)
+            array[i] = value;
+        return array;
+    }
+
+    /**
+     * @return the stream for sounds nothing more specific matches, or -1 to leave them alone
+     */
+    public int getDefaultStream() {
+        return defaultStream;
+    }
+
+    /**
+     * @return when the table applies, or null if it always does
+     */
+    public RuleCondition getCondition() {
+        return condition;
+    }
+
+    /**
+     * @return whether every input maps to {@link #getDefaultStream()}, so callers can skip
+     * finding out the usage at all
+     */
+    public boolean isUniform() {
+        return uniform;
+    }
+
+    /**
+     * @return whether any input maps to a stream
+     */
+    public boolean routesAnything() {
+        if (defaultStream != -1)
+            return true;
+        for (int stream : byAttributes) {
+            if (stream != -1)
+                return true;
+        }
+        for (int stream : byLegacyStream) {
+            if (stream != -1)
+                return true;
+        }
+        return false;
+    }
+
+    public int forAttributes(int usage, int contentType) {
+        if (usage < 0 || usage >= USAGE_COUNT || contentType < 0 || contentType >= CONTENT_TYPE_COUNT)
+            return defaultStream;
+        return byAttributes[usage * CONTENT_TYPE_COUNT + contentType];
+    }
+
+    public int forLegacyStream(int legacyStream) {
+        if (legacyStream < 0 || legacyStream >= STREAM_COUNT)
+            return defaultStream;
+        return byLegacyStream[legacyStream];
+    }
+
+    /**
+     * @return the highest stream any input maps to, or -1
+     */
+    public int maxStream() {
+        int max = defaultStream;
+        for (int stream : byAttributes)
+            max = Math.max(max, stream);
+        for (int stream : byLegacyStream)
+            max = Math.max(max, stream);
+        return max;
+    }
+}
@@ -0,0 +1,72 @@
+package xposed.audiorouter.rules;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class Rule {
+
+    private String packageName;
+    private int stream = -1;
+    private List<UsageRule> usageRules;
+    private RuleCondition condition;
+
+    public Rule(String packageName) {
+        this.packageName = packageName;
+    }
+
+    public String getPackageName() {
+        return packageName;
+    }
+
+    public void setStream(int stream) {
+        this.stream = stream;
+    }
+
+    public int getStream() {
+        return stream;
+    }
+
+    /**
+     * @return the rules for particular kinds of sound, which take precedence over
+     * {@link #getStream()}; never null
+     */
+    public List<UsageRule> getUsageRules() {
+        return null != usageRules ? usageRules : Collections.<UsageRule>emptyList();
+    }
+
+    public void setUsageRules(List<UsageRule> usageRules) {
+        this.usageRules = null != usageRules && !usageRules.isEmpty() ? new ArrayList<>(usageRules) : null;
+    }
+
+    /**
+     * Replaces the rule for {@code kind} and {@code value}, or removes it when {@code stream}
+     * is -1.
+     */
+    public void setUsageStream(int kind, int value, int stream) {
+        List<UsageRule> updated = new ArrayList<>(getUsageRules());
+        for (int i = updated.size() - 1; i >= 0; i--) {
+            UsageRule rule = updated.get(i);
+            if (rule.getKind() == kind && rule.getValue() == value)
+                updated.remove(i);
+        }
+        if (stream != -1)
+            updated.add(new UsageRule(kind, value, stream));
+        setUsageRules(updated);
+    }
+
+    /**
+     * @return when the rule applies, or null if it always does
+     */
+    public RuleCondition getCondition() {
+        return condition;
+    }
+
+    public void setCondition(RuleCondition condition) {
+        this.condition = RuleCondition.orNull(condition);
+    }
+
+    public RoutingTable compile() {
+        return RoutingTable.compile(stream, usageRules, condition);
+    }
+}
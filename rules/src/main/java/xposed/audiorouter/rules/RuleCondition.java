@@ -0,0 +1,83 @@
+package xposed.audiorouter.rules;
+
+/**
+ * When a rule applies, as a test against a bitmask of device state: the {@code STATE_*} bits in
+ * {@link #getRequired()} must be set and those in {@link #getForbidden()} clear. A time window
+ * requires {@link #STATE_IN_WINDOW}, which whoever tracks the state sets while the clock is
+ * inside {@link #getWindowStart()} and {@link #getWindowEnd()}.
+ */
+public class RuleCondition {
+
+    public static final int STATE_HEADSET = 1;
+    public static final int STATE_BLUETOOTH = 1 << 1;
+    public static final int STATE_IN_WINDOW = 1 << 2;
+    public static final int ALL_STATES = STATE_HEADSET | STATE_BLUETOOTH | STATE_IN_WINDOW;
+    public static final int MINUTES_PER_DAY = 24 * 60;
+
+    private int required;
+    private int forbidden;
+    private int windowStart = -1;
+    private int windowEnd = -1;
+
+    /**
+     * @param windowStart minute of the day the window opens, or -1 for no window
+     * @param windowEnd   minute of the day the window closes, earlier than {@code windowStart}
+     *                    for windows spanning midnight
+     */
+    public RuleCondition(int required, int forbidden, int windowStart, int windowEnd) {
+        this.windowStart = windowStart;
+        this.windowEnd = windowStart >= 0 ? windowEnd : -1;
+        this.required = (required & ~STATE_IN_WINDOW) | (windowStart >= 0 ? STATE_IN_WINDOW : 0);
+        this.forbidden = forbidden & ~this.required & ~STATE_IN_WINDOW;
+    }
+
+    public int getRequired() {
+        return required;
+    }
+
+    public int getForbidden() {
+        return forbidden;
+    }
+
+    /**
+     * @return the state bits this condition looks at
+     */
+    public int getDependencies() {
+        return required | forbidden;
+    }
+
+    public int getWindowStart() {
+        return windowStart;
+    }
+
+    public int getWindowEnd() {
+        return windowEnd;
+    }
+
+    public boolean hasWindow() {
+        return windowStart >= 0;
+    }
+
+    public boolean isEmpty() {
+        return getDependencies() == 0;
+    }
+
+    public boolean matches(int state) {
+        return (state & required) == required && (state & forbidden) == 0;
+    }
+
+    public boolean isInWindow(int minuteOfDay) {
+        if (!hasWindow())
+            return true;
+        if (windowStart <= windowEnd)
+            return minuteOfDay >= windowStart && minuteOfDay < windowEnd;
+        return minuteOfDay >= windowStart || minuteOfDay < windowEnd;
+    }
+
+    /**
+     * @return {@code condition}, or null if it doesn't restrict anything
+     */
+    static RuleCondition orNull(RuleCondition condition) {
+        return null != condition && !condition.isEmpty() ? condition : null;
+    }
+}
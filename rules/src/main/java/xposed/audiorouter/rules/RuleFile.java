@@ -0,0 +1,341 @@
+package xposed.audiorouter.rules;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compact binary form of the rules list, written by the app and memory-mapped by the hook.
+ * <p>
+ * Layout (big-endian): magic, version, count, name offsets[count + 1], streams[count], usage rule
+ * offsets[count + 1], usage rules (kind, value, stream)[], matcher size, matcher nodes[], uid map
+ * size, uid map[], conditions (required, forbidden, window start, window end)[count], names.
+ * Version 1 files stop after the streams, version 2 files after the usage rules, version 3 files
+ * have no uid map and version 4 files no conditions. Names are ASCII package names or wildcard
+ * patterns sorted by {@link String#compareTo(String)}, so exact lookups are a binary search over
+ * the mapped bytes and wildcard lookups a {@link PackageMatcher} walk over them, neither
+ * allocating. The {@link UidMap} resolves a process by uid without looking at names at all.
+ * Compiled tables are cached per rule, so looking the same package up again doesn't allocate
+ * either; a process looks up few packages, so the cache is small.
+ */
+public final class RuleFile implements RuleLookup {
+
+    public static final String FILE_NAME = "rules.bin";
+
+    private static final int MAGIC = 0x58415252; // "XARR"
+    private static final int VERSION = 5;
+    private static final int USAGE_RULE_SIZE = 12;
+    private static final int CONDITION_SIZE = 16;
+    private static final int HEADER_SIZE = 12;
+    // A power of two
+    private static final int TABLE_CACHE_SIZE = 16;
+
+    private final ByteBuffer buffer;
+    private final int count;
+    private final int streamsOffset;
+    private final int usageOffsetsOffset;
+    private final int usageRulesOffset;
+    private final int conditionsOffset;
+    private final int namesOffset;
+    private final PackageMatcher matcher;
+    private final UidMap uidMap;
+    private final CachedTable[] tables = new CachedTable[TABLE_CACHE_SIZE];
+
+    private RuleFile(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC)
+            throw new IOException("Not a rule file");
+        int version = buffer.getInt(4);
+        if (version < 1 || version > VERSION)
+            throw new IOException("Unsupported rule file version " + version);
+        count = buffer.getInt(8);
+        if (count < 0)
+            throw new IOException("Truncated rule file");
+        streamsOffset = HEADER_SIZE + (count + 1) * 4;
+        int offset = streamsOffset + count * 4;
+        if (version >= 2) {
+            usageOffsetsOffset = offset;
+            usageRulesOffset = usageOffsetsOffset + (count + 1) * 4;
+            checkBounds(usageRulesOffset);
+            offset = usageRulesOffset + buffer.getInt(usageOffsetsOffset + count * 4) * USAGE_RULE_SIZE;
+        } else {
+            usageOffsetsOffset = -1;
+            usageRulesOffset = -1;
+        }
+        if (version >= 3) {
+            checkBounds(offset + 4);
+            int matcherSize = buffer.getInt(offset);
+            offset += 4;
+            matcher = new PackageMatcher(intSection(offset, matcherSize));
+            offset += matcherSize * 4;
+        } else {
+            matcher = new PackageMatcher(IntBuffer.allocate(0));
+        }
+        if (version >= 4) {
+            checkBounds(offset + 4);
+            int uidMapSize = buffer.getInt(offset);
+            offset += 4;
+            uidMap = new UidMap(intSection(offset, uidMapSize));
+            offset += uidMapSize * 4;
+        } else {
+            uidMap = new UidMap(IntBuffer.allocate(0));
+        }
+        if (version >= 5) {
+            conditionsOffset = offset;
+            offset += count * CONDITION_SIZE;
+        } else {
+            conditionsOffset = -1;
+        }
+        namesOffset = offset;
+        checkBounds(namesOffset);
+        checkBounds(namesOffset + buffer.getInt(HEADER_SIZE + count * 4));
+    }
+
+    private IntBuffer intSection(int offset, int size) throws IOException {
+        if (size < 0)
+            throw new IOException("Truncated rule file");
+        checkBounds(offset + size * 4);
+        ByteBuffer section = buffer.duplicate();
+        section.position(offset);
+        section.limit(offset + size * 4);
+        return section.slice().asIntBuffer();
+    }
+
+    private void checkBounds(int offset) throws IOException {
+        if (offset < 0 || offset > buffer.capacity())
+            throw new IOException("Truncated rule file");
+    }
+
+    public static RuleFile open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new RuleFile(buffer);
+        } finally {
+            raf.close();
+        }
+    }
+
+    public static void write(File file, List<Rule> rules) throws IOException {
+        write(file, rules, Collections.<Integer, String>emptyMap());
+    }
+
+    /**
+     * Writes {@code rules} with {@code uidRules} mapping uids to the package name or pattern of
+     * the rule that routes them. Uids whose rule isn't written are left out.
+     */
+    public static void write(File file, List<Rule> rules, Map<Integer, String> uidRules) throws IOException {
+        List<Rule> sorted = new ArrayList<>();
+        if (null != rules) {
+            Set<String> seen = new HashSet<>();
+            for (Rule rule : rules) {
+                // First rule for a package wins, matching RuleSnapshot
+                if (null != rule && isAscii(rule.getPackageName()) && seen.add(rule.getPackageName()))
+                    sorted.add(rule);
+            }
+        }
+        Collections.sort(sorted, new Comparator<Rule>() {
+            @Override
+            public int compare(Rule lhs, Rule rhs) {
+                return lhs.getPackageName().compareTo(rhs.getPackageName());
+            }
+        });
+
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tmp);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(sorted.size());
+            int offset = 0;
+            out.writeInt(offset);
+            for (Rule rule : sorted) {
+                offset += rule.getPackageName().length();
+                out.writeInt(offset);
+            }
+            for (Rule rule : sorted)
+                out.writeInt(rule.getStream());
+            offset = 0;
+            out.writeInt(offset);
+            for (Rule rule : sorted) {
+                offset += rule.getUsageRules().size();
+                out.writeInt(offset);
+            }
+            for (Rule rule : sorted) {
+                for (UsageRule usageRule : rule.getUsageRules()) {
+                    out.writeInt(usageRule.getKind());
+                    out.writeInt(usageRule.getValue());
+                    out.writeInt(usageRule.getStream());
+                }
+            }
+            PackageMatcher.Builder builder = new PackageMatcher.Builder();
+            for (int i = 0; i < sorted.size(); i++) {
+                if (PackageMatcher.isPattern(sorted.get(i).getPackageName()))
+                    builder.add(sorted.get(i).getPackageName(), i);
+            }
+            int[] nodes = builder.build();
+            out.writeInt(nodes.length);
+            for (int node : nodes)
+                out.writeInt(node);
+            Map<String, Integer> indexes = new HashMap<>(sorted.size() * 2);
+            for (int i = 0; i < sorted.size(); i++)
+                indexes.put(sorted.get(i).getPackageName(), i);
+            UidMap.Builder uids = new UidMap.Builder();
+            for (Map.Entry<Integer, String> entry : uidRules.entrySet()) {
+                Integer index = indexes.get(entry.getValue());
+                if (null != index)
+                    uids.put(entry.getKey(), index);
+            }
+            int[] uidMap = uids.build();
+            out.writeInt(uidMap.length);
+            for (int value : uidMap)
+                out.writeInt(value);
+            for (Rule rule : sorted) {
+                RuleCondition condition = rule.getCondition();
+                out.writeInt(null != condition ? condition.getRequired() : 0);
+                out.writeInt(null != condition ? condition.getForbidden() : 0);
+                out.writeInt(null != condition ? condition.getWindowStart() : -1);
+                out.writeInt(null != condition ? condition.getWindowEnd() : -1);
+            }
+            for (Rule rule : sorted)
+                out.writeBytes(rule.getPackageName());
+            out.flush();
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+        if (!tmp.renameTo(file))
+            throw new IOException("Error renaming " + tmp + " to " + file);
+    }
+
+    @Override
+    public int getStreamForPackage(String packageName) {
+        int index = indexOf(packageName);
+        return index >= 0 ? buffer.getInt(streamsOffset + index * 4) : -1;
+    }
+
+    @Override
+    public RoutingTable getTableForPackage(String packageName) {
+        int index = indexOf(packageName);
+        return index >= 0 ? tableAt(index) : null;
+    }
+
+    @Override
+    public RoutingTable getTableForUid(int uid) {
+        int index = uidMap.get(uid);
+        return index >= 0 && index < count ? tableAt(index) : null;
+    }
+
+    private RoutingTable tableAt(int index) {
+        int slot = index & (TABLE_CACHE_SIZE - 1);
+        // Racing lookups at worst compile the same table twice
+        CachedTable cached = tables[slot];
+        if (null != cached && cached.index == index)
+            return cached.table;
+        RoutingTable table = compileTable(index);
+        tables[slot] = new CachedTable(index, table);
+        return table;
+    }
+
+    private RoutingTable compileTable(int index) {
+        List<UsageRule> usageRules = new ArrayList<>();
+        if (usageOffsetsOffset >= 0) {
+            int end = buffer.getInt(usageOffsetsOffset + (index + 1) * 4);
+            for (int i = buffer.getInt(usageOffsetsOffset + index * 4); i < end; i++) {
+                int position = usageRulesOffset + i * USAGE_RULE_SIZE;
+                usageRules.add(new UsageRule(buffer.getInt(position), buffer.getInt(position + 4),
+                        buffer.getInt(position + 8)));
+            }
+        }
+        RuleCondition condition = null;
+        if (conditionsOffset >= 0) {
+            int position = conditionsOffset + index * CONDITION_SIZE;
+            condition = new RuleCondition(buffer.getInt(position), buffer.getInt(position + 4),
+                    buffer.getInt(position + 8), buffer.getInt(position + 12));
+        }
+        return RoutingTable.compile(buffer.getInt(streamsOffset + index * 4), usageRules, condition);
+    }
+
+    /**
+     * @return the index of {@code packageName}'s own rule, else of the longest matching pattern,
+     * or -1
+     */
+    private int indexOf(String packageName) {
+        int index = exactIndexOf(packageName);
+        return index >= 0 ? index : matcher.match(packageName);
+    }
+
+    private int exactIndexOf(String packageName) {
+        if (null == packageName)
+            return -1;
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = compareName(mid, packageName);
+            if (cmp < 0)
+                low = mid + 1;
+            else if (cmp > 0)
+                high = mid - 1;
+            else
+                return mid;
+        }
+        return -1;
+    }
+
+    @Override
+    public int size() {
+        return count;
+    }
+
+    private int compareName(int index, String packageName) {
+        int start = namesOffset + buffer.getInt(HEADER_SIZE + index * 4);
+        int end = namesOffset + buffer.getInt(HEADER_SIZE + (index + 1) * 4);
+        int length = end - start;
+        int n = Math.min(length, packageName.length());
+        for (int i = 0; i < n; i++) {
+            int diff = (buffer.get(start + i) & 0xff) - packageName.charAt(i);
+            if (diff != 0)
+                return diff;
+        }
+        return length - packageName.length();
+    }
+
+    private static boolean isAscii(String s) {
+        if (null == s)
+            return false;
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) > 0x7f)
+                return false;
+        }
+        return true;
+    }
+
+    private static final class CachedTable {
+
+        final int index;
+        final RoutingTable table;
+
+        CachedTable(int index, RoutingTable table) {
+            this.index = index;
+            this.table = table;
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package xposed.audiorouter.rules;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonIOException;
+import com.google.gson.JsonParseException;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.List;
+
+/**
+ * The rules list as a snapshot plus an append-only journal of the edits made since. Each edit
+ * appends one JSON line per changed rule, holding either the rule as it now is or the key it was
+ * removed from, so saving an edit costs the same however long the list is. Reading replays the
+ * journal over the snapshot; compacting writes a new snapshot and empties the journal.
+ * <p>
+ * Not thread safe; drive it from a single worker.
+ */
+public final class RuleJournal {
+
+    public static final String SNAPSHOT_FILE_NAME = "rules.json";
+    public static final String JOURNAL_FILE_NAME = "rules.journal";
+
+    private static final Gson GSON = new Gson();
+
+    private final File snapshotFile;
+    private final File journalFile;
+    private boolean torn;
+
+    public RuleJournal(File dir) {
+        this.snapshotFile = new File(dir, SNAPSHOT_FILE_NAME);
+        this.journalFile = new File(dir, JOURNAL_FILE_NAME);
+    }
+
+    /**
+     * @return the record for {@code packageName} now being {@code rule}, or removed if it is null
+     */
+    public static String encode(String packageName, Rule rule) {
+        Record record = new Record();
+        if (null != rule)
+            record.put = rule;
+        else
+            record.remove = packageName;
+        return GSON.toJson(record);
+    }
+
+    public boolean exists() {
+        return snapshotFile.exists() || journalFile.exists();
+    }
+
+    /**
+     * @return the journal size in bytes
+     */
+    public long length() {
+        return journalFile.length();
+    }
+
+    /**
+     * @return the snapshot with every journaled edit applied
+     */
+    public RuleList read() throws IOException {
+        RuleList rules = new RuleList();
+        if (snapshotFile.exists()) {
+            Reader in = new BufferedReader(new InputStreamReader(new FileInputStream(snapshotFile), "UTF-8"));
+            try {
+                rules.addAll(Rules.fromJson(in));
+            } catch (JsonParseException e) {
+                throw new IOException("Error parsing " + snapshotFile + ", " + e.getMessage());
+            } finally {
+                in.close();
+            }
+        }
+        if (!journalFile.exists())
+            return rules;
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile), "UTF-8"));
+        try {
+            String line;
+            while (null != (line = in.readLine())) {
+                Record record;
+                try {
+                    record = GSON.fromJson(line, Record.class);
+                } catch (JsonParseException e) {
+                    // The tail of an append cut short, nothing after it was ever acknowledged
+                    continue;
+                }
+                if (null == record)
+                    continue;
+                if (null != record.put && null != record.put.getPackageName())
+                    rules.put(record.put);
+                else if (null != record.remove)
+                    rules.remove(record.remove);
+            }
+        } finally {
+            in.close();
+        }
+        torn = !endsWithNewline(journalFile);
+        return rules;
+    }
+
+    /**
+     * Appends {@code records} from {@link #encode(String, Rule)} and syncs them to disk.
+     */
+    public void append(List<String> records) throws IOException {
+        FileOutputStream fos = new FileOutputStream(journalFile, true);
+        try {
+            Writer out = new BufferedWriter(new OutputStreamWriter(fos, "UTF-8"));
+            // Keeps a cut short record from swallowing the first new one
+            if (torn)
+                out.write('\n');
+            for (String record : records)
+                out.write(record + '\n');
+            out.flush();
+            fos.getFD().sync();
+            torn = false;
+        } finally {
+            fos.close();
+        }
+    }
+
+    /**
+     * Replaces the snapshot with {@code rules} and empties the journal.
+     */
+    public void compact(List<Rule> rules) throws IOException {
+        File tmp = new File(snapshotFile.getPath() + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tmp);
+        try {
+            Writer out = new BufferedWriter(new OutputStreamWriter(fos, "UTF-8"));
+            Rules.toJson(rules, out);
+            out.flush();
+            fos.getFD().sync();
+        } catch (JsonIOException e) {
+            throw new IOException("Error writing " + tmp + ", " + e.getMessage());
+        } finally {
+            fos.close();
+        }
+        if (!tmp.renameTo(snapshotFile))
+            throw new IOException("Error renaming " + tmp + " to " + snapshotFile);
+        // Records replayed over a snapshot that already has them change nothing, so dying
+        // between the rename and this loses nothing either
+        new FileOutputStream(journalFile).close();
+        torn = false;
+    }
+
+    private static boolean endsWithNewline(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            long length = raf.length();
+            if (length == 0)
+                return true;
+            raf.seek(length - 1);
+            return raf.read() == '\n';
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static final class Record {
+
+        private Rule put;
+        private String remove;
+    }
+}
@@ -0,0 +1,116 @@
+package xposed.audiorouter.rules;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The editable rules list, keyed by package name or pattern and kept in insertion order. There is
+ * at most one rule per key, and finding, adding or removing one is a hash lookup. Not thread safe;
+ * hand other threads a {@link #toList()} copy.
+ */
+public final class RuleList implements Iterable<Rule> {
+
+    private final Map<String, Rule> rules = new LinkedHashMap<>();
+
+    public RuleList() {
+    }
+
+    /**
+     * @param rules initial rules; null entries and later rules for an existing key are dropped
+     */
+    public RuleList(Collection<Rule> rules) {
+        addAll(rules);
+    }
+
+    public int size() {
+        return rules.size();
+    }
+
+    public boolean isEmpty() {
+        return rules.isEmpty();
+    }
+
+    public boolean contains(String packageName) {
+        return rules.containsKey(packageName);
+    }
+
+    public Rule get(String packageName) {
+        return rules.get(packageName);
+    }
+
+    /**
+     * @return whether {@code rule} was added, false if its key already has a rule
+     */
+    public boolean add(Rule rule) {
+        if (null == rule || null == rule.getPackageName() || rules.containsKey(rule.getPackageName()))
+            return false;
+        rules.put(rule.getPackageName(), rule);
+        return true;
+    }
+
+    /**
+     * Adds {@code rule}, or replaces the rule for its key where that one stands.
+     *
+     * @return the replaced rule, or null
+     */
+    public Rule put(Rule rule) {
+        return rules.put(rule.getPackageName(), rule);
+    }
+
+    /**
+     * @return how many of {@code rules} were added
+     */
+    public int addAll(Collection<Rule> rules) {
+        int added = 0;
+        if (null != rules) {
+            for (Rule rule : rules) {
+                if (add(rule))
+                    added++;
+            }
+        }
+        return added;
+    }
+
+    /**
+     * @return the removed rule, or null if {@code packageName} had none
+     */
+    public Rule remove(String packageName) {
+        return rules.remove(packageName);
+    }
+
+    /**
+     * @return how many of {@code packageNames} had a rule to remove
+     */
+    public int removeAll(Collection<String> packageNames) {
+        int removed = 0;
+        for (String packageName : packageNames) {
+            if (null != rules.remove(packageName))
+                removed++;
+        }
+        return removed;
+    }
+
+    /**
+     * Replaces every rule with {@code rules}, deduplicated as by {@link #addAll(Collection)}.
+     */
+    public void replaceAll(Collection<Rule> rules) {
+        this.rules.clear();
+        addAll(rules);
+    }
+
+    /**
+     * @return the rules in order, as a list the caller owns
+     */
+    public List<Rule> toList() {
+        return new ArrayList<>(rules.values());
+    }
+
+    @Override
+    public Iterator<Rule> iterator() {
+        return rules.values().iterator();
+    }
+}
@@ -0,0 +1,22 @@
+package xposed.audiorouter.rules;
+
+public interface RuleLookup {
+
+    /**
+     * @return the stream to route {@code packageName} to, or -1 if it has no rule
+     */
+    int getStreamForPackage(String packageName);
+
+    /**
+     * @return {@code packageName}'s rules compiled for the hooks, or null if it has no rule
+     */
+    RoutingTable getTableForPackage(String packageName);
+
+    /**
+     * @return the rules of the app {@code uid} was resolved to when the rules were published, or
+     * null if this lookup doesn't know the uid
+     */
+    RoutingTable getTableForUid(int uid);
+
+    int size();
+}
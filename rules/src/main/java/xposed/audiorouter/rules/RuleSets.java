@@ -0,0 +1,317 @@
+package xposed.audiorouter.rules;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Rule set files for provisioning many devices with the same rules. Files are read and written one
+ * rule at a time, and a file with more than {@link #MAX_RULES} rules is refused, so reading one
+ * never holds more than that many.
+ * <p>
+ * The format is {@code {"version": 1, "rules": [...]}} with rules in their {@link Rules} JSON
+ * form; a bare rules array is accepted too. Rules that fail validation are skipped and
+ * reported, malformed JSON aborts the read.
+ */
+public final class RuleSets {
+
+    public static final int VERSION = 1;
+    public static final int MAX_RULES = 100000;
+    private static final int MAX_ERRORS = 20;
+
+    public interface RuleSink {
+        void onRule(Rule rule);
+    }
+
+    public static final class Report {
+
+        private int read;
+        private int accepted;
+        private int rejected;
+        private final List<String> errors = new ArrayList<>();
+        private long elapsedNanos;
+
+        public int getRead() {
+            return read;
+        }
+
+        public int getAccepted() {
+            return accepted;
+        }
+
+        public int getRejected() {
+            return rejected;
+        }
+
+        /**
+         * @return the first few validation errors, one line each
+         */
+        public List<String> getErrors() {
+            return Collections.unmodifiableList(errors);
+        }
+
+        public long getElapsedMillis() {
+            return elapsedNanos / 1000000;
+        }
+
+        void reject(String error) {
+            rejected++;
+            if (errors.size() < MAX_ERRORS)
+                errors.add(error);
+        }
+    }
+
+    private RuleSets() {
+    }
+
+    /**
+     * Streams the rules in {@code in} to {@code sink}, skipping invalid ones.
+     *
+     * @throws IOException if {@code in} can't be read or isn't a rule set
+     */
+    public static Report read(Reader in, RuleSink sink) throws IOException {
+        Report report = new Report();
+        long start = System.nanoTime();
+        JsonReader reader = new JsonReader(in);
+        try {
+            if (reader.peek() == JsonToken.BEGIN_ARRAY) {
+                readRules(reader, sink, report);
+            } else {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String name = reader.nextName();
+                    if ("version".equals(name)) {
+                        int version = reader.nextInt();
+                        if (version > VERSION)
+                            throw new IOException("Unsupported rule set version " + version);
+                    } else if ("rules".equals(name)) {
+                        readRules(reader, sink, report);
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            }
+        } catch (IllegalStateException | NumberFormatException e) {
+            // Wrong token types, which JsonReader doesn't report as IOExceptions
+            throw new IOException("Malformed rule set, " + e.getMessage(), e);
+        }
+        report.elapsedNanos = System.nanoTime() - start;
+        return report;
+    }
+
+    private static void readRules(JsonReader reader, RuleSink sink, Report report) throws IOException {
+        reader.beginArray();
+        while (reader.hasNext()) {
+            if (report.read == MAX_RULES)
+                throw new IOException("Rule set has more than " + MAX_RULES + " rules");
+            report.read++;
+            String packageName = null;
+            int stream = -1;
+            List<UsageRule> usageRules = null;
+            RuleCondition condition = null;
+            String error = null;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if ("packageName".equals(name)) {
+                    packageName = reader.nextString();
+                } else if ("stream".equals(name)) {
+                    stream = reader.nextInt();
+                } else if ("usageRules".equals(name)) {
+                    usageRules = new ArrayList<>();
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        UsageRule usageRule = readUsageRule(reader);
+                        String usageError = validate(usageRule);
+                        if (null == usageError)
+                            usageRules.add(usageRule);
+                        else if (null == error)
+                            error = usageError;
+                    }
+                    reader.endArray();
+                } else if ("condition".equals(name)) {
+                    condition = readCondition(reader);
+                    String conditionError = validate(condition);
+                    if (null != conditionError && null == error)
+                        error = conditionError;
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            if (null == error)
+                error = validate(packageName, stream);
+            if (null != error) {
+                report.reject("Rule " + report.read + ": " + error);
+                continue;
+            }
+            Rule rule = new Rule(packageName);
+            rule.setStream(stream);
+            rule.setUsageRules(usageRules);
+            rule.setCondition(condition);
+            sink.onRule(rule);
+            report.accepted++;
+        }
+        reader.endArray();
+    }
+
+    private static UsageRule readUsageRule(JsonReader reader) throws IOException {
+        int kind = -1;
+        int value = -1;
+        int stream = -1;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if ("kind".equals(name))
+                kind = reader.nextInt();
+            else if ("value".equals(name))
+                value = reader.nextInt();
+            else if ("stream".equals(name))
+                stream = reader.nextInt();
+            else
+                reader.skipValue();
+        }
+        reader.endObject();
+        return new UsageRule(kind, value, stream);
+    }
+
+    private static RuleCondition readCondition(JsonReader reader) throws IOException {
+        int required = 0;
+        int forbidden = 0;
+        int windowStart = -1;
+        int windowEnd = -1;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if ("required".equals(name))
+                required = reader.nextInt();
+            else if ("forbidden".equals(name))
+                forbidden = reader.nextInt();
+            else if ("windowStart".equals(name))
+                windowStart = reader.nextInt();
+            else if ("windowEnd".equals(name))
+                windowEnd = reader.nextInt();
+            else
+                reader.skipValue();
+        }
+        reader.endObject();
+        return new RuleCondition(required, forbidden, windowStart, windowEnd);
+    }
+
+    private static String validate(RuleCondition condition) {
+        if (((condition.getRequired() | condition.getForbidden()) & ~RuleCondition.ALL_STATES) != 0)
+            return "invalid condition states";
+        if (condition.hasWindow() && (condition.getWindowStart() >= RuleCondition.MINUTES_PER_DAY
+                || condition.getWindowEnd() < 0 || condition.getWindowEnd() >= RuleCondition.MINUTES_PER_DAY))
+            return "invalid condition window " + condition.getWindowStart() + "-" + condition.getWindowEnd();
+        return null;
+    }
+
+    private static String validate(String packageName, int stream) {
+        if (!Rules.isValidPackageName(packageName))
+            return "invalid package name " + packageName;
+        if (!isValidStream(stream))
+            return "invalid stream " + stream + " for " + packageName;
+        return null;
+    }
+
+    private static String validate(UsageRule rule) {
+        int limit;
+        switch (rule.getKind()) {
+            case UsageRule.KIND_USAGE:
+                limit = RoutingTable.USAGE_COUNT;
+                break;
+            case UsageRule.KIND_CONTENT_TYPE:
+                limit = RoutingTable.CONTENT_TYPE_COUNT;
+                break;
+            case UsageRule.KIND_LEGACY_STREAM:
+                limit = RoutingTable.STREAM_COUNT;
+                break;
+            default:
+                return "invalid usage rule kind " + rule.getKind();
+        }
+        if (rule.getValue() < 0 || rule.getValue() >= limit)
+            return "invalid usage rule value " + rule.getValue();
+        if (!isValidStream(rule.getStream()))
+            return "invalid usage rule stream " + rule.getStream();
+        return null;
+    }
+
+    private static boolean isValidStream(int stream) {
+        return stream == -1 || Rules.isSupportedStream(stream);
+    }
+
+    /**
+     * Writes {@code rules} as a rule set, one rule at a time.
+     *
+     * @return the number of rules written
+     */
+    public static int write(Writer out, Iterable<Rule> rules) throws IOException {
+        JsonWriter writer = new JsonWriter(out);
+        writer.setIndent("  ");
+        writer.beginObject();
+        writer.name("version").value(VERSION);
+        writer.name("rules").beginArray();
+        int count = 0;
+        for (Rule rule : rules) {
+            writer.beginObject();
+            writer.name("packageName").value(rule.getPackageName());
+            writer.name("stream").value(rule.getStream());
+            if (!rule.getUsageRules().isEmpty()) {
+                writer.name("usageRules").beginArray();
+                for (UsageRule usageRule : rule.getUsageRules()) {
+                    writer.beginObject();
+                    writer.name("kind").value(usageRule.getKind());
+                    writer.name("value").value(usageRule.getValue());
+                    writer.name("stream").value(usageRule.getStream());
+                    writer.endObject();
+                }
+                writer.endArray();
+            }
+            RuleCondition condition = rule.getCondition();
+            if (null != condition) {
+                writer.name("condition").beginObject();
+                writer.name("required").value(condition.getRequired());
+                writer.name("forbidden").value(condition.getForbidden());
+                if (condition.hasWindow()) {
+                    writer.name("windowStart").value(condition.getWindowStart());
+                    writer.name("windowEnd").value(condition.getWindowEnd());
+                }
+                writer.endObject();
+            }
+            writer.endObject();
+            count++;
+        }
+        writer.endArray();
+        writer.endObject();
+        writer.flush();
+        return count;
+    }
+
+    /**
+     * Applies {@code imported} to {@code current}. A later rule for a package replaces an earlier
+     * one in place; with {@code replace} nothing of {@code current} is kept.
+     */
+    public static List<Rule> merge(List<Rule> current, List<Rule> imported, boolean replace) {
+        Map<String, Rule> merged = new LinkedHashMap<>();
+        if (!replace && null != current) {
+            for (Rule rule : current) {
+                if (!merged.containsKey(rule.getPackageName()))
+                    merged.put(rule.getPackageName(), rule);
+            }
+        }
+        for (Rule rule : imported)
+            merged.put(rule.getPackageName(), rule);
+        return new ArrayList<>(merged.values());
+    }
+}
@@ -0,0 +1,84 @@
+package xposed.audiorouter.rules;
+
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable, parsed view of the rules list. Instances are safe to share between threads.
+ * <p>
+ * An exact package rule beats any wildcard rule, and a longer wildcard prefix beats a shorter one.
+ * Wildcards are compiled into a {@link PackageMatcher} once, when the snapshot is built.
+ */
+public final class RuleSnapshot implements RuleLookup {
+
+    public static final RuleSnapshot EMPTY = new RuleSnapshot(Collections.<String, Rule>emptyMap(),
+            Collections.<Rule>emptyList(), new PackageMatcher(IntBuffer.allocate(0)));
+
+    private final Map<String, Rule> rules;
+    private final List<Rule> patterns;
+    private final PackageMatcher matcher;
+
+    private RuleSnapshot(Map<String, Rule> rules, List<Rule> patterns, PackageMatcher matcher) {
+        this.rules = rules;
+        this.patterns = patterns;
+        this.matcher = matcher;
+    }
+
+    public static RuleSnapshot of(List<Rule> rules) {
+        if (null == rules || rules.isEmpty())
+            return EMPTY;
+        Map<String, Rule> map = new HashMap<>(rules.size() * 2);
+        List<Rule> patterns = new ArrayList<>();
+        PackageMatcher.Builder builder = new PackageMatcher.Builder();
+        for (Rule rule : rules) {
+            if (null == rule || null == rule.getPackageName())
+                continue;
+            if (PackageMatcher.isPattern(rule.getPackageName())) {
+                builder.add(rule.getPackageName(), patterns.size());
+                patterns.add(rule);
+            } else if (!map.containsKey(rule.getPackageName())) {
+                // First rule for a package wins, as the old linear scan did
+                map.put(rule.getPackageName(), rule);
+            }
+        }
+        return new RuleSnapshot(Collections.unmodifiableMap(map), Collections.unmodifiableList(patterns),
+                new PackageMatcher(IntBuffer.wrap(builder.build())));
+    }
+
+    public Rule getRuleForPackage(String packageName) {
+        if (null == packageName)
+            return null;
+        Rule rule = rules.get(packageName);
+        if (null != rule)
+            return rule;
+        int pattern = matcher.match(packageName);
+        return pattern >= 0 ? patterns.get(pattern) : null;
+    }
+
+    @Override
+    public int getStreamForPackage(String packageName) {
+        Rule rule = getRuleForPackage(packageName);
+        return null != rule ? rule.getStream() : -1;
+    }
+
+    @Override
+    public RoutingTable getTableForPackage(String packageName) {
+        Rule rule = getRuleForPackage(packageName);
+        return null != rule ? rule.compile() : null;
+    }
+
+    @Override
+    public RoutingTable getTableForUid(int uid) {
+        // Parsed from the preferences, which only know package names
+        return null;
+    }
+
+    @Override
+    public int size() {
+        return rules.size() + patterns.size();
+    }
+}
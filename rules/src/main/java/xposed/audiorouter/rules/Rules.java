@@ -0,0 +1,95 @@
+package xposed.audiorouter.rules;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+
+import java.io.Reader;
+import java.lang.reflect.Type;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * JSON form of the rules list, as stored in the {@link RuleJournal} snapshot and, before there was
+ * one, under the "rules" preference.
+ */
+public final class Rules {
+
+    // AudioManager.STREAM_VOICE_CALL, SYSTEM, RING, MUSIC, ALARM, NOTIFICATION and DTMF, the
+    // streams the app offers
+    private static final int SUPPORTED_STREAMS = 1 | 1 << 1 | 1 << 2 | 1 << 3 | 1 << 4 | 1 << 5 | 1 << 8;
+    private static final Pattern PACKAGE_NAME = Pattern.compile("[A-Za-z0-9_]+(\\.[A-Za-z0-9_]+)*");
+    private static final Pattern WILDCARD_PATTERN = Pattern.compile("([A-Za-z0-9_]+\\.)*[A-Za-z0-9_]*\\*");
+
+    private static final Type RULES_TYPE = new TypeToken<List<Rule>>() {
+    }.getType();
+    private static final Gson GSON = new Gson();
+
+    private Rules() {
+    }
+
+    /**
+     * @throws com.google.gson.JsonParseException if {@code json} is not a valid rules list
+     */
+    public static List<Rule> fromJson(String json) {
+        return GSON.fromJson(json, RULES_TYPE);
+    }
+
+    /**
+     * @throws com.google.gson.JsonParseException if {@code in} is not a valid rules list
+     */
+    public static List<Rule> fromJson(Reader in) {
+        return GSON.fromJson(in, RULES_TYPE);
+    }
+
+    /**
+     * @return whether {@code name} is a package name or a wildcard pattern such as
+     * {@code com.vendor.*}
+     */
+    public static boolean isValidPackageName(String name) {
+        return null != name && (PACKAGE_NAME.matcher(name).matches() || WILDCARD_PATTERN.matcher(name).matches());
+    }
+
+    /**
+     * @return whether {@code stream} is one rules may route to
+     */
+    public static boolean isSupportedStream(int stream) {
+        return stream >= 0 && stream < 32 && (SUPPORTED_STREAMS & (1 << stream)) != 0;
+    }
+
+    /**
+     * @return whether {@code a} and {@code b} are for the same key and route the same way
+     */
+    public static boolean sameRule(Rule a, Rule b) {
+        if (!a.getPackageName().equals(b.getPackageName()) || a.getStream() != b.getStream())
+            return false;
+        List<UsageRule> aUsage = a.getUsageRules();
+        List<UsageRule> bUsage = b.getUsageRules();
+        if (aUsage.size() != bUsage.size())
+            return false;
+        for (int i = 0; i < aUsage.size(); i++) {
+            UsageRule x = aUsage.get(i);
+            UsageRule y = bUsage.get(i);
+            if (x.getKind() != y.getKind() || x.getValue() != y.getValue() || x.getStream() != y.getStream())
+                return false;
+        }
+        RuleCondition aCondition = a.getCondition();
+        RuleCondition bCondition = b.getCondition();
+        if (null == aCondition || null == bCondition)
+            return aCondition == bCondition;
+        return aCondition.getRequired() == bCondition.getRequired()
+                && aCondition.getForbidden() == bCondition.getForbidden()
+                && aCondition.getWindowStart() == bCondition.getWindowStart()
+                && aCondition.getWindowEnd() == bCondition.getWindowEnd();
+    }
+
+    public static String toJson(List<Rule> rules) {
+        return GSON.toJson(rules, RULES_TYPE);
+    }
+
+    /**
+     * @throws com.google.gson.JsonIOException if writing to {@code out} fails
+     */
+    public static void toJson(List<Rule> rules, Appendable out) {
+        GSON.toJson(rules, RULES_TYPE, out);
+    }
+}
@@ -0,0 +1,97 @@
+package xposed.audiorouter.rules;
+
+import java.nio.IntBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Open addressing map from app id to rule index, so a hooked process finds its rule from
+ * {@code Process.myUid()} alone. Keys are app ids rather than uids, which makes one table serve
+ * every user on the device.
+ * <p>
+ * Like {@link PackageMatcher} it is a flat int array that can live on the heap or inside the mapped
+ * rule file: [capacity, (key, value) * capacity], capacity a power of two, linear probing, and
+ * {@link #EMPTY_KEY} marking free slots.
+ */
+public final class UidMap {
+
+    public static final int PER_USER_RANGE = 100000;
+    private static final int EMPTY_KEY = -1;
+
+    private final IntBuffer table;
+
+    public UidMap(IntBuffer table) {
+        this.table = table;
+    }
+
+    public static int appIdOf(int uid) {
+        return uid % PER_USER_RANGE;
+    }
+
+    /**
+     * @return the rule index for {@code uid}'s app id, or -1
+     */
+    public int get(int uid) {
+        if (table.limit() == 0)
+            return -1;
+        int key = appIdOf(uid);
+        int mask = table.get(0) - 1;
+        // Bounded by the capacity rather than trusting a mapped table to have a free slot
+        for (int i = 0, slot = hash(key) & mask; i <= mask; i++, slot = (slot + 1) & mask) {
+            int current = table.get(1 + slot * 2);
+            if (current == key)
+                return table.get(2 + slot * 2);
+            if (current == EMPTY_KEY)
+                return -1;
+        }
+        return -1;
+    }
+
+    private static int hash(int key) {
+        int h = key * 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Collects app ids and flattens them into the table {@link UidMap} probes.
+     */
+    public static final class Builder {
+
+        private final Map<Integer, Integer> entries = new LinkedHashMap<>();
+
+        /**
+         * Maps {@code uid}'s app id to {@code rule}, ignoring it if the app id is already mapped.
+         */
+        public Builder put(int uid, int rule) {
+            int key = appIdOf(uid);
+            if (key >= 0 && !entries.containsKey(key))
+                entries.put(key, rule);
+            return this;
+        }
+
+        public int size() {
+            return entries.size();
+        }
+
+        public int[] build() {
+            int size = entries.size();
+            if (size == 0)
+                return new int[0];
+            // At most half full, so probe sequences stay short and always reach an empty slot
+            int capacity = Integer.highestOneBit(size * 2 - 1) << 1;
+            int mask = capacity - 1;
+            int[] table = new int[1 + capacity * 2];
+            table[0] = capacity;
+            for (int slot = 0; slot < capacity; slot++)
+                table[1 + slot * 2] = EMPTY_KEY;
+            for (Map.Entry<Integer, Integer> entry : entries.entrySet()) {
+                int slot = hash(entry.getKey()) & mask;
+                while (table[1 + slot * 2] != EMPTY_KEY)
+                    slot = (slot + 1) & mask;
+                table[1 + slot * 2] = entry.getKey();
+                table[2 + slot * 2] = entry.getValue();
+            }
+            return table;
+        }
+    }
+}
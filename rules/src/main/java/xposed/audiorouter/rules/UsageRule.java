@@ -0,0 +1,34 @@
+package xposed.audiorouter.rules;
+
+/**
+ * Routes one kind of sound within a package: everything with a given {@code AudioAttributes}
+ * usage, content type, or legacy stream type goes to {@link #getStream()}.
+ */
+public class UsageRule {
+
+    public static final int KIND_USAGE = 0;
+    public static final int KIND_CONTENT_TYPE = 1;
+    public static final int KIND_LEGACY_STREAM = 2;
+
+    private int kind;
+    private int value;
+    private int stream = -1;
+
+    public UsageRule(int kind, int value, int stream) {
+        this.kind = kind;
+        this.value = value;
+        this.stream = stream;
+    }
+
+    public int getKind() {
+        return kind;
+    }
+
+    public int getValue() {
+        return value;
+    }
+
+    public int getStream() {
+        return stream;
+    }
+}
@@ -0,0 +1,74 @@
+package xposed.audiorouter.rules;
+
+import org.junit.Test;
+
+import java.nio.IntBuffer;
+
+import static org.junit.Assert.*;
+
+public class PackageMatcherTest {
+
+    @Test
+    public void longestPrefixWins() {
+        PackageMatcher matcher = matcher(new PackageMatcher.Builder()
+                .add("com.*", 0)
+                .add("com.vendor.*", 1)
+                .add("com.vendor.app.*", 2));
+
+        assertEquals(0, matcher.match("com.other"));
+        assertEquals(1, matcher.match("com.vendor.music"));
+        assertEquals(2, matcher.match("com.vendor.app.beta"));
+        assertEquals(-1, matcher.match("org.vendor.app"));
+    }
+
+    @Test
+    public void insertionOrderDoesNotMatter() {
+        PackageMatcher matcher = matcher(new PackageMatcher.Builder()
+                .add("com.vendor.*", 1)
+                .add("com.*", 0));
+
+        assertEquals(1, matcher.match("com.vendor.music"));
+        assertEquals(0, matcher.match("com.other"));
+    }
+
+    @Test
+    public void firstPatternForAPrefixWins() {
+        PackageMatcher matcher = matcher(new PackageMatcher.Builder()
+                .add("com.vendor.*", 1)
+                .add("com.vendor.*", 2));
+
+        assertEquals(1, matcher.match("com.vendor.music"));
+    }
+
+    @Test
+    public void bareWildcardMatchesEverything() {
+        PackageMatcher matcher = matcher(new PackageMatcher.Builder()
+                .add("*", 0)
+                .add("com.vendor.*", 1));
+
+        assertEquals(0, matcher.match("org.example"));
+        assertEquals(1, matcher.match("com.vendor.music"));
+    }
+
+    @Test
+    public void emptyMatcherMatchesNothing() {
+        PackageMatcher matcher = matcher(new PackageMatcher.Builder());
+
+        assertEquals(-1, matcher.match("com.example"));
+        assertEquals(-1, matcher.match(null));
+    }
+
+    @Test
+    public void recognizesPatterns() {
+        assertTrue(PackageMatcher.isPattern("com.vendor.*"));
+        assertTrue(PackageMatcher.isPattern("*"));
+        assertFalse(PackageMatcher.isPattern("com.vendor.app"));
+        assertFalse(PackageMatcher.isPattern("com.*.app"));
+        assertFalse(PackageMatcher.isPattern(""));
+        assertFalse(PackageMatcher.isPattern(null));
+    }
+
+    private static PackageMatcher matcher(PackageMatcher.Builder builder) {
+        return new PackageMatcher(IntBuffer.wrap(builder.build()));
+    }
+}
@@ -0,0 +1,190 @@
+package xposed.audiorouter.rules;
+
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class RuleFileTest {
+
+    private static final int MAGIC = 0x58415252;
+    private static final int USAGE_MEDIA = 1;
+    private static final int USAGE_ALARM = 4;
+
+    @org.junit.Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void roundTripsStreamsUsageRulesAndConditions() throws Exception {
+        Rule music = rule("com.example.music", 3);
+        music.setUsageStream(UsageRule.KIND_USAGE, USAGE_ALARM, 4);
+        Rule night = rule("com.example.night", 2);
+        night.setCondition(new RuleCondition(RuleCondition.STATE_HEADSET, 0, 22 * 60, 7 * 60));
+        File file = folder.newFile();
+        RuleFile.write(file, Arrays.asList(night, music, rule("com.example.plain", 5)));
+
+        RuleFile rules = RuleFile.open(file);
+        assertEquals(3, rules.size());
+        assertEquals(5, rules.getStreamForPackage("com.example.plain"));
+        assertEquals(-1, rules.getStreamForPackage("com.example.other"));
+        assertNull(rules.getTableForPackage("com.example.other"));
+
+        RoutingTable table = rules.getTableForPackage("com.example.music");
+        assertFalse(table.isUniform());
+        assertEquals(4, table.forAttributes(USAGE_ALARM, 0));
+        assertEquals(3, table.forAttributes(USAGE_MEDIA, 0));
+        assertNull(table.getCondition());
+
+        RuleCondition condition = rules.getTableForPackage("com.example.night").getCondition();
+        assertNotNull(condition);
+        assertEquals(RuleCondition.STATE_HEADSET | RuleCondition.STATE_IN_WINDOW, condition.getRequired());
+        assertEquals(22 * 60, condition.getWindowStart());
+        assertEquals(7 * 60, condition.getWindowEnd());
+    }
+
+    @Test
+    public void firstRuleForAPackageWins() throws Exception {
+        File file = folder.newFile();
+        RuleFile.write(file, Arrays.asList(rule("com.example", 1), rule("com.example", 2)));
+
+        RuleFile rules = RuleFile.open(file);
+        assertEquals(1, rules.size());
+        assertEquals(1, rules.getStreamForPackage("com.example"));
+    }
+
+    @Test
+    public void exactRuleBeatsMostSpecificPattern() throws Exception {
+        File file = folder.newFile();
+        RuleFile.write(file, Arrays.asList(rule("com.*", 1), rule("com.vendor.*", 2), rule("com.vendor.app", 3)));
+
+        RuleFile rules = RuleFile.open(file);
+        assertEquals(3, rules.getStreamForPackage("com.vendor.app"));
+        assertEquals(2, rules.getStreamForPackage("com.vendor.other"));
+        assertEquals(1, rules.getStreamForPackage("com.other"));
+        assertEquals(-1, rules.getStreamForPackage("org.vendor.app"));
+    }
+
+    @Test
+    public void resolvesUidsOfEveryUser() throws Exception {
+        Map<Integer, String> uids = new HashMap<>();
+        uids.put(10050, "com.example.music");
+        uids.put(10051, "com.example.gone");
+        File file = folder.newFile();
+        RuleFile.write(file, Collections.singletonList(rule("com.example.music", 3)), uids);
+
+        RuleFile rules = RuleFile.open(file);
+        assertEquals(3, rules.getTableForUid(10050).getDefaultStream());
+        assertEquals(3, rules.getTableForUid(10 * UidMap.PER_USER_RANGE + 10050).getDefaultStream());
+        // Uids whose rule isn't written are left out
+        assertNull(rules.getTableForUid(10051));
+        assertNull(rules.getTableForUid(10052));
+    }
+
+    @Test
+    public void repeatedLookupsReuseTheCompiledTable() throws Exception {
+        Map<Integer, String> uids = new HashMap<>();
+        uids.put(10050, "com.example.music");
+        File file = folder.newFile();
+        RuleFile.write(file, Arrays.asList(rule("com.example.music", 3), rule("com.example.*", 2)), uids);
+
+        RuleFile rules = RuleFile.open(file);
+        RoutingTable table = rules.getTableForPackage("com.example.music");
+        assertSame(table, rules.getTableForPackage("com.example.music"));
+        assertSame(table, rules.getTableForUid(10050));
+        assertEquals(2, rules.getTableForPackage("com.example.game").getDefaultStream());
+        assertSame(table, rules.getTableForPackage("com.example.music"));
+    }
+
+    @Test
+    public void readsVersion1Files() throws Exception {
+        File file = folder.newFile();
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(1);
+            out.writeInt(1);
+            out.writeInt(0);
+            out.writeInt("com.example".length());
+            out.writeInt(3);
+            out.writeBytes("com.example");
+        } finally {
+            out.close();
+        }
+
+        RuleFile rules = RuleFile.open(file);
+        assertEquals(3, rules.getStreamForPackage("com.example"));
+        RoutingTable table = rules.getTableForPackage("com.example");
+        assertTrue(table.isUniform());
+        assertNull(table.getCondition());
+    }
+
+    @Test
+    public void readsVersion4FilesWithoutConditions() throws Exception {
+        File file = folder.newFile();
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(4);
+            out.writeInt(1);
+            out.writeInt(0);
+            out.writeInt("com.example".length());
+            out.writeInt(3);
+            // Usage rule offsets, no usage rules, empty matcher and uid map
+            out.writeInt(0);
+            out.writeInt(0);
+            out.writeInt(0);
+            out.writeInt(0);
+            out.writeBytes("com.example");
+        } finally {
+            out.close();
+        }
+
+        RuleFile rules = RuleFile.open(file);
+        assertEquals(3, rules.getStreamForPackage("com.example"));
+        assertNull(rules.getTableForPackage("com.example").getCondition());
+        assertNull(rules.getTableForUid(10050));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsTruncatedFiles() throws Exception {
+        File file = folder.newFile();
+        RuleFile.write(file, Arrays.asList(rule("com.example.a", 1), rule("com.example.b", 2)));
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(raf.length() - 10);
+        } finally {
+            raf.close();
+        }
+        RuleFile.open(file);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsNewerVersions() throws Exception {
+        File file = folder.newFile();
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(99);
+            out.writeInt(0);
+        } finally {
+            out.close();
+        }
+        RuleFile.open(file);
+    }
+
+    private static Rule rule(String packageName, int stream) {
+        Rule rule = new Rule(packageName);
+        rule.setStream(stream);
+        return rule;
+    }
+}
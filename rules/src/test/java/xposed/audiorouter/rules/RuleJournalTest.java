@@ -0,0 +1,122 @@
+package xposed.audiorouter.rules;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class RuleJournalTest {
+
+    @org.junit.Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = folder.newFolder();
+    }
+
+    @Test
+    public void replaysEditsInOrder() throws Exception {
+        RuleJournal journal = new RuleJournal(dir);
+        assertFalse(journal.exists());
+        journal.append(Arrays.asList(
+                RuleJournal.encode("com.example.a", rule("com.example.a", 3)),
+                RuleJournal.encode("com.vendor.*", rule("com.vendor.*", 4))));
+        journal.append(Collections.singletonList(RuleJournal.encode("com.example.a", rule("com.example.a", 5))));
+        journal.append(Collections.singletonList(RuleJournal.encode("com.example.b", rule("com.example.b", 1))));
+        journal.append(Collections.singletonList(RuleJournal.encode("com.vendor.*", null)));
+
+        RuleList rules = new RuleJournal(dir).read();
+        assertEquals(2, rules.size());
+        // Replacing a rule keeps its place
+        assertEquals("com.example.a", rules.toList().get(0).getPackageName());
+        assertEquals(5, rules.get("com.example.a").getStream());
+        assertNull(rules.get("com.vendor.*"));
+    }
+
+    @Test
+    public void skipsATruncatedLastRecord() throws Exception {
+        RuleJournal journal = new RuleJournal(dir);
+        journal.append(Collections.singletonList(RuleJournal.encode("com.example.a", rule("com.example.a", 3))));
+        appendRaw("{\"put\":{\"packageName\":\"com.exa");
+
+        journal = new RuleJournal(dir);
+        RuleList rules = journal.read();
+        assertEquals(1, rules.size());
+        assertEquals(3, rules.get("com.example.a").getStream());
+
+        // The next record starts on a line of its own instead of joining the torn one
+        journal.append(Collections.singletonList(RuleJournal.encode("com.example.b", rule("com.example.b", 1))));
+        rules = new RuleJournal(dir).read();
+        assertEquals(2, rules.size());
+        assertEquals(1, rules.get("com.example.b").getStream());
+    }
+
+    @Test
+    public void compactingKeepsTheRulesAndEmptiesTheJournal() throws Exception {
+        RuleJournal journal = new RuleJournal(dir);
+        journal.append(Arrays.asList(
+                RuleJournal.encode("com.example.a", rule("com.example.a", 3)),
+                RuleJournal.encode("com.example.b", rule("com.example.b", 1))));
+        journal.compact(journal.read().toList());
+        assertEquals(0, journal.length());
+
+        journal.append(Collections.singletonList(RuleJournal.encode("com.example.a", null)));
+        RuleList rules = new RuleJournal(dir).read();
+        assertEquals(1, rules.size());
+        assertEquals(1, rules.get("com.example.b").getStream());
+    }
+
+    @Test
+    public void replayingOverTheSnapshotChangesNothing() throws Exception {
+        // As after dying between writing the snapshot and emptying the journal
+        RuleJournal journal = new RuleJournal(dir);
+        journal.append(Arrays.asList(
+                RuleJournal.encode("com.example.a", rule("com.example.a", 3)),
+                RuleJournal.encode("com.example.b", null)));
+        writeSnapshot("[{\"packageName\":\"com.example.a\",\"stream\":3}]");
+
+        RuleList rules = new RuleJournal(dir).read();
+        assertEquals(1, rules.size());
+        assertEquals(3, rules.get("com.example.a").getStream());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsACorruptSnapshot() throws Exception {
+        writeSnapshot("[{\"packageName\":");
+        new RuleJournal(dir).read();
+    }
+
+    private void appendRaw(String text) throws IOException {
+        FileWriter out = new FileWriter(new File(dir, RuleJournal.JOURNAL_FILE_NAME), true);
+        try {
+            out.write(text);
+        } finally {
+            out.close();
+        }
+    }
+
+    private void writeSnapshot(String json) throws IOException {
+        FileWriter out = new FileWriter(new File(dir, RuleJournal.SNAPSHOT_FILE_NAME));
+        try {
+            out.write(json);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static Rule rule(String packageName, int stream) {
+        Rule rule = new Rule(packageName);
+        rule.setStream(stream);
+        return rule;
+    }
+}
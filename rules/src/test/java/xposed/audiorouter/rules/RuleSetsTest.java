@@ -0,0 +1,137 @@
+package xposed.audiorouter.rules;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class RuleSetsTest {
+
+    @Test
+    public void roundTripsRules() throws Exception {
+        Rule music = rule("com.example.music", 3);
+        music.setUsageStream(UsageRule.KIND_USAGE, 4, 4);
+        Rule night = rule("com.vendor.*", 2);
+        night.setCondition(new RuleCondition(0, RuleCondition.STATE_BLUETOOTH, 22 * 60, 7 * 60));
+        StringWriter out = new StringWriter();
+        assertEquals(2, RuleSets.write(out, Arrays.asList(music, night)));
+
+        List<Rule> rules = new ArrayList<>();
+        RuleSets.Report report = read(out.toString(), rules);
+        assertEquals(2, report.getAccepted());
+        assertEquals(0, report.getRejected());
+        assertTrue(Rules.sameRule(music, rules.get(0)));
+        assertTrue(Rules.sameRule(night, rules.get(1)));
+    }
+
+    @Test
+    public void acceptsABareRulesArray() throws Exception {
+        List<Rule> rules = new ArrayList<>();
+        RuleSets.Report report = read("[{\"packageName\": \"com.example\", \"stream\": 3}]", rules);
+
+        assertEquals(1, report.getAccepted());
+        assertEquals(3, rules.get(0).getStream());
+    }
+
+    @Test
+    public void rejectsInvalidRulesAndKeepsTheRest() throws Exception {
+        List<Rule> rules = new ArrayList<>();
+        RuleSets.Report report = read("{\"version\": 1, \"rules\": ["
+                + "{\"packageName\": \"com.example.good\", \"stream\": 3},"
+                + "{\"packageName\": \"not a package\", \"stream\": 3},"
+                + "{\"packageName\": \"com.example.stream\", \"stream\": 42},"
+                + "{\"packageName\": \"com.example.usage\", \"usageRules\": [{\"kind\": 0, \"value\": 99, \"stream\": 3}]},"
+                + "{\"packageName\": \"com.example.window\", \"condition\": {\"windowStart\": 1500, \"windowEnd\": 60}},"
+                + "{\"packageName\": \"com.example.states\", \"condition\": {\"required\": 64}}"
+                + "]}", rules);
+
+        assertEquals(6, report.getRead());
+        assertEquals(1, report.getAccepted());
+        assertEquals(5, report.getRejected());
+        assertEquals(5, report.getErrors().size());
+        assertEquals("com.example.good", rules.get(0).getPackageName());
+    }
+
+    @Test
+    public void rejectsStreamsTheAppDoesNotOffer() throws Exception {
+        List<Rule> rules = new ArrayList<>();
+        RuleSets.Report report = read("[{\"packageName\": \"com.example.dtmf\", \"stream\": 8},"
+                + "{\"packageName\": \"com.example.sco\", \"stream\": 6},"
+                + "{\"packageName\": \"com.example.usage\", \"usageRules\": [{\"kind\": 0, \"value\": 4, \"stream\": 7}]}]",
+                rules);
+
+        assertEquals(1, report.getAccepted());
+        assertEquals("com.example.dtmf", rules.get(0).getPackageName());
+    }
+
+    @Test
+    public void acceptsUpToTheRuleCap() throws Exception {
+        List<Rule> rules = new ArrayList<>();
+        RuleSets.Report report = read(ruleSet(RuleSets.MAX_RULES), rules);
+
+        assertEquals(RuleSets.MAX_RULES, report.getAccepted());
+    }
+
+    @Test(expected = IOException.class)
+    public void refusesRuleSetsOverTheCap() throws Exception {
+        read(ruleSet(RuleSets.MAX_RULES + 1), new ArrayList<Rule>());
+    }
+
+    @Test(expected = IOException.class)
+    public void malformedJsonAbortsTheRead() throws Exception {
+        read("{\"rules\": [{\"packageName\": ", new ArrayList<Rule>());
+    }
+
+    @Test(expected = IOException.class)
+    public void wrongTokenTypesAbortTheRead() throws Exception {
+        read("{\"rules\": [{\"packageName\": \"com.example\", \"stream\": \"loud\"}]}", new ArrayList<Rule>());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsNewerVersions() throws Exception {
+        read("{\"version\": 99, \"rules\": []}", new ArrayList<Rule>());
+    }
+
+    @Test
+    public void mergeReplacesRulesInPlace() {
+        List<Rule> current = Arrays.asList(rule("com.example.a", 1), rule("com.example.b", 2));
+        List<Rule> imported = Arrays.asList(rule("com.example.b", 5), rule("com.example.c", 3));
+
+        List<Rule> merged = RuleSets.merge(current, imported, false);
+        assertEquals(3, merged.size());
+        assertEquals("com.example.b", merged.get(1).getPackageName());
+        assertEquals(5, merged.get(1).getStream());
+
+        List<Rule> replaced = RuleSets.merge(current, imported, true);
+        assertEquals(2, replaced.size());
+        assertEquals("com.example.b", replaced.get(0).getPackageName());
+    }
+
+    private static RuleSets.Report read(String json, final List<Rule> rules) throws IOException {
+        return RuleSets.read(new StringReader(json), new RuleSets.RuleSink() {
+            @Override
+            public void onRule(Rule rule) {
+                rules.add(rule);
+            }
+        });
+    }
+
+    private static String ruleSet(int count) {
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < count; i++)
+            json.append(i > 0 ? "," : "").append("{\"packageName\": \"com.example.app").append(i).append("\"}");
+        return json.append(']').toString();
+    }
+
+    private static Rule rule(String packageName, int stream) {
+        Rule rule = new Rule(packageName);
+        rule.setStream(stream);
+        return rule;
+    }
+}
@@ -0,0 +1,65 @@
+package xposed.audiorouter.rules;
+
+import org.junit.Test;
+
+import java.nio.IntBuffer;
+
+import static org.junit.Assert.*;
+
+public class UidMapTest {
+
+    @Test
+    public void mapsAppIdsOfEveryUser() {
+        UidMap map = map(new UidMap.Builder()
+                .put(10050, 0)
+                .put(10051, 1));
+
+        assertEquals(0, map.get(10050));
+        assertEquals(1, map.get(10051));
+        assertEquals(0, map.get(UidMap.PER_USER_RANGE + 10050));
+        assertEquals(1, map.get(10 * UidMap.PER_USER_RANGE + 10051));
+        assertEquals(-1, map.get(10052));
+    }
+
+    @Test
+    public void firstRuleForAnAppIdWins() {
+        UidMap.Builder builder = new UidMap.Builder()
+                .put(10050, 0)
+                .put(UidMap.PER_USER_RANGE + 10050, 1);
+
+        assertEquals(1, builder.size());
+        assertEquals(0, map(builder).get(10050));
+    }
+
+    @Test
+    public void findsEveryKeyPastCollisions() {
+        UidMap.Builder builder = new UidMap.Builder();
+        for (int i = 0; i < 500; i++)
+            builder.put(10000 + i, i);
+        UidMap map = map(builder);
+
+        for (int i = 0; i < 500; i++)
+            assertEquals(i, map.get(10000 + i));
+        assertEquals(-1, map.get(10500));
+    }
+
+    @Test
+    public void emptyMapFindsNothing() {
+        assertEquals(0, new UidMap.Builder().build().length);
+        assertEquals(-1, map(new UidMap.Builder()).get(10050));
+    }
+
+    @Test
+    public void fullTableStillTerminates() {
+        // A corrupt mapped table with no free slot must not be probed forever
+        int[] table = {2, 10050, 0, 10051, 1};
+        UidMap map = new UidMap(IntBuffer.wrap(table));
+
+        assertEquals(1, map.get(10051));
+        assertEquals(-1, map.get(10052));
+    }
+
+    private static UidMap map(UidMap.Builder builder) {
+        return new UidMap(IntBuffer.wrap(builder.build()));
+    }
+}